@@ -0,0 +1,231 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+import org.amelia.dsl.lib.descriptors.Host;
+import org.amelia.dsl.lib.util.Log;
+import org.amelia.dsl.lib.util.ShellUtils;
+import org.amelia.dsl.lib.util.TarWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.io.CountingOutputStream;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+
+/**
+ * Uploads a directory as a single tar+gzip stream, written to the standard
+ * input of a remote {@code tar} process through an exec channel. Packing,
+ * transfer and extraction overlap: the remote host unpacks the files while
+ * the rest of the stream is still being produced. Unlike uploading each file
+ * separately, there is no per-file (or per-directory) round trip.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ArchiveTransfer {
+
+	/**
+	 * The time to wait between checks of the channel state
+	 */
+	private static final long POLL_INTERVAL = 5;
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private final Host host;
+
+	private final Session session;
+
+	private final int connectionTimeout;
+
+	/**
+	 * The time to wait for the remote command to finish once the archive is
+	 * written ({@code amelia.execution_timeout}), or -1 to wait indefinitely
+	 */
+	private final int executionTimeout;
+
+	/**
+	 * The channel of the upload in progress
+	 */
+	private volatile ChannelExec channel;
+
+	private volatile boolean cancelled;
+
+	/**
+	 * The logger
+	 */
+	private final static Logger logger = LogManager.getLogger(ArchiveTransfer.class);
+
+	/**
+	 * @param host
+	 *            The host to which directories are transferred
+	 * @param session
+	 *            The (connected) SSH session of the host
+	 * @param connectionTimeout
+	 *            The timeout to connect the channels
+	 */
+	public ArchiveTransfer(final Host host, final Session session,
+			final int connectionTimeout) {
+		this.host = host;
+		this.session = session;
+		this.connectionTimeout = connectionTimeout;
+		this.executionTimeout = Integer.parseInt(
+				System.getProperty("amelia.execution_timeout"));
+	}
+
+	/**
+	 * @return whether directories are transferred as compressed archives,
+	 *         according to {@code amelia.directory_transfer}
+	 */
+	public static boolean isEnabled() {
+		return "archive".equals(System.getProperty("amelia.directory_transfer"));
+	}
+
+	/**
+	 * Uploads the contents of a local directory. The remote directory is
+	 * created if necessary. Unless it is overwritten, the archive is
+	 * extracted over its current contents: remote files with the same path
+	 * are replaced, and the others are kept. This is what a per-file SFTP
+	 * upload does; {@link FTPClient}, instead, fails if a subdirectory
+	 * already exists.
+	 * 
+	 * @param directory
+	 *            The local directory
+	 * @param remote
+	 *            The remote directory
+	 * @param overwrite
+	 *            Whether the remote directory is removed before extracting
+	 *            the archive
+	 * @throws Exception
+	 *             If the channel cannot be opened, or the archive cannot be
+	 *             written or extracted
+	 * @throws TimeoutException
+	 *             If the remote command does not finish within the execution
+	 *             timeout after the archive is written
+	 */
+	public void upload(final File directory, final String remote,
+			final boolean overwrite) throws Exception {
+		long start = System.currentTimeMillis();
+		String target = ShellUtils.quote(remote);
+		String command = (overwrite ? "rm -rf " + target + " && " : "")
+				+ "mkdir -p " + target + " && tar xzof - -C " + target;
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ChannelExec channel = (ChannelExec) this.session.openChannel("exec");
+		this.channel = channel;
+		channel.setCommand(command);
+		channel.setOutputStream(output, true);
+		channel.setErrStream(output, true);
+		OutputStream input = channel.getOutputStream();
+		try {
+			channel.connect(this.connectionTimeout);
+			CountingOutputStream compressed = new CountingOutputStream(
+					new BufferedOutputStream(input, BUFFER_SIZE));
+			TarWriter writer;
+			int files;
+			try {
+				GZIPOutputStream gzip = new GZIPOutputStream(compressed, BUFFER_SIZE);
+				writer = new TarWriter(gzip);
+				files = writer.writeContents(directory);
+				writer.finish();
+				gzip.finish();
+				compressed.flush();
+			} catch (IOException e) {
+				if (this.cancelled)
+					throw new IOException("The upload of " + directory + " to "
+							+ this.host + " was cancelled", e);
+				// The remote command may have failed before reading the stream
+				try {
+					await(channel);
+				} catch (TimeoutException t) {
+					// Report the write error instead
+				}
+				throw new IOException("Unable to upload " + directory + " to "
+						+ this.host + ". Error is: " + errorMessage(output, e), e);
+			} finally {
+				// Signal the end of the stream
+				input.close();
+			}
+			int status = await(channel);
+			if (this.cancelled)
+				throw new IOException("The upload of " + directory + " to "
+						+ this.host + " was cancelled");
+			if (status != 0)
+				throw new IOException("Unable to extract " + directory + " in "
+						+ remote + " in " + this.host + " (exit status " + status
+						+ "). Error is: " + output.toString("UTF-8").trim());
+			long time = Math.max(1, System.currentTimeMillis() - start);
+			String message = String.format(
+					"Uploaded %d file%s as an archive (%.1f KB, %.1f KB compressed) in %d ms (%.1f KB/s)",
+					files, files == 1 ? "" : "s", writer.written() / 1024.0,
+					compressed.getCount() / 1024.0, time,
+					writer.written() / 1024.0 / (time / 1000.0));
+			logger.info(message + " to " + this.host);
+			Log.info(this.host, message);
+		} finally {
+			channel.disconnect();
+		}
+	}
+
+	/**
+	 * Stops the upload in progress, if any. The channel is closed, so the
+	 * remote {@code tar} process reaches the end of its input and exits; the
+	 * upload fails with an {@link IOException}.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		ChannelExec channel = this.channel;
+		if (channel != null)
+			channel.disconnect();
+	}
+
+	/**
+	 * Waits until the remote command finishes
+	 * 
+	 * @return its exit status
+	 * @throws TimeoutException
+	 *             If the command does not finish within the execution timeout
+	 */
+	private int await(final ChannelExec channel)
+			throws InterruptedException, TimeoutException {
+		long deadline = System.currentTimeMillis() + this.executionTimeout;
+		while (!channel.isClosed() && channel.isConnected()) {
+			if (this.executionTimeout != -1
+					&& System.currentTimeMillis() > deadline)
+				throw new TimeoutException("The extraction in " + this.host
+						+ " did not finish within " + this.executionTimeout
+						+ " ms");
+			Thread.sleep(POLL_INTERVAL);
+		}
+		return channel.getExitStatus();
+	}
+
+	private String errorMessage(final ByteArrayOutputStream output,
+			final IOException e) throws IOException {
+		String message = output.toString("UTF-8").trim();
+		return message.isEmpty() ? e.getMessage() : message;
+	}
+
+}
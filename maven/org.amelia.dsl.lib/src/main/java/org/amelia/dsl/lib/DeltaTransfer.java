@@ -0,0 +1,393 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.amelia.dsl.lib.util.ShellUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Updates remote files by sending only the parts that changed, in the manner
+ * of rsync. The remote host computes a signature of its copy of the file (a
+ * weak rolling checksum and an MD5 digest per block); then, the local file is
+ * scanned with the rolling checksum to find the blocks that the remote host
+ * already has. Only the remaining bytes are uploaded, together with a script
+ * that rebuilds the file from the old copy and the new bytes. Remote commands
+ * are limited to POSIX tools (od, awk, dd, md5sum, head and tail).
+ * <p>
+ * The weak checksums are computed by {@code awk}, one interpreted step per
+ * byte of the remote file (a few MB/s), which is slower than uploading large
+ * files over most networks. Files larger than {@link #MAX_SIZE}, locally or
+ * remotely, are therefore uploaded in full.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class DeltaTransfer {
+
+	/**
+	 * The signature of a remote file
+	 */
+	private static class Signature {
+		private final long size;
+		private final Map<Integer, List<Integer>> weak;
+		private final List<String> strong;
+
+		public Signature(final long size) {
+			this.size = size;
+			this.weak = new HashMap<Integer, List<Integer>>();
+			this.strong = new ArrayList<String>();
+		}
+	}
+
+	/**
+	 * The maximum number of instructions of a reconstruction script. Files
+	 * requiring more instructions are uploaded in full.
+	 */
+	private static final int MAX_INSTRUCTIONS = 2000;
+
+	/**
+	 * The maximum number of blocks of a signature. The remote host computes
+	 * the strong checksum of each block in a separate process, so the block
+	 * size grows with the size of the file to bound the number of processes.
+	 */
+	private static final int MAX_BLOCKS = 256;
+
+	/**
+	 * The maximum size of the files transferred as deltas (in bytes)
+	 */
+	public static final long MAX_SIZE = 8 * 1024 * 1024;
+
+	private final SSHHandler handler;
+
+	private final int blockSize;
+
+	/**
+	 * The logger
+	 */
+	private final static Logger logger = LogManager.getLogger(DeltaTransfer.class);
+
+	/**
+	 * @param handler
+	 *            The handler of the host to which files are transferred
+	 * @param blockSize
+	 *            The minimum size of the blocks compared (in bytes)
+	 */
+	public DeltaTransfer(final SSHHandler handler, final int blockSize) {
+		this.handler = handler;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return whether files are transferred as deltas when possible
+	 */
+	public static boolean isEnabled() {
+		return Boolean.getBoolean("amelia.delta_transfer");
+	}
+
+	/**
+	 * Updates the given remote file with the contents of the local file.
+	 * 
+	 * @param channel
+	 *            The SFTP channel used to upload the changed bytes
+	 * @param local
+	 *            The local file
+	 * @param remote
+	 *            The remote file
+	 * @return whether the remote file was updated, or {@code false} if it must
+	 *         be uploaded in full (e.g., it does not exist, or it is too
+	 *         different from the local file)
+	 * @throws Exception
+	 *             If there is an error executing the remote commands
+	 */
+	public boolean upload(final ChannelSftp channel, final File local,
+			final String remote) throws Exception {
+		if (local.length() < this.blockSize || local.length() > MAX_SIZE)
+			return false;
+		int blockSize = (int) Math.max(this.blockSize,
+				(local.length() + MAX_BLOCKS - 1) / MAX_BLOCKS);
+		// Remote commands do not run in the directory SFTP paths are relative to
+		String path = absolutePath(channel, remote);
+		Signature signature = signature(path, blockSize);
+		if (signature == null || signature.strong.isEmpty())
+			return false;
+		ByteBuffer buffer = map(local);
+		// Instructions: {offset in the old file or -1, offset in the local file, length}
+		List<long[]> instructions = delta(buffer, signature, blockSize);
+		if (instructions.size() > MAX_INSTRUCTIONS)
+			return false;
+		long literal = 0;
+		for (long[] instruction : instructions) {
+			if (instruction[0] == -1)
+				literal += instruction[2];
+		}
+		if (literal == 0 && instructions.size() == 1
+				&& instructions.get(0)[0] == 0 && signature.size == buffer.limit()) {
+			logger.info(remote + " is up to date in " + this.handler.host());
+			return true;
+		}
+		String delta = path + ".amelia-delta";
+		if (literal > 0)
+			uploadLiterals(channel, buffer, instructions, delta);
+		String digest = md5(buffer, 0, buffer.limit());
+		ExecChannel exec = this.handler.exec(script(path, delta,
+				instructions, literal > 0), -1);
+		String[] output = exec.stdout().trim().split("\\s+");
+		if (exec.exitStatus() != 0 || !output[0].equals(digest)) {
+			logger.warn("The delta transfer of " + local + " to " + remote
+					+ " in " + this.handler.host() + " failed: " + exec.stderr());
+			return false;
+		}
+		logger.info(String.format("%s was updated in %s sending %d of %d bytes",
+				remote, this.handler.host(), literal, buffer.limit()));
+		return true;
+	}
+
+	/**
+	 * @return the absolute path of the given remote file, as resolved by the
+	 *         SFTP server
+	 */
+	private String absolutePath(final ChannelSftp channel, final String remote)
+			throws SftpException {
+		if (remote.startsWith("/"))
+			return remote;
+		// The file itself may not exist, but its directory does
+		String parent = SFTPHandler.parent(remote);
+		String name = remote.substring(remote.lastIndexOf('/') + 1);
+		String directory = channel.realpath(parent.isEmpty() ? "." : parent);
+		return (directory.endsWith("/") ? directory : directory + "/") + name;
+	}
+
+	/**
+	 * Computes the signature of the remote file.
+	 * 
+	 * @return the signature, or {@code null} if the file does not exist, is
+	 *         larger than {@link #MAX_SIZE} or has too many blocks
+	 */
+	private Signature signature(final String remote, final int b)
+			throws Exception {
+		String file = ShellUtils.quote(remote);
+		StringBuilder sb = new StringBuilder();
+		sb.append("[ -f " + file + " ] || exit 3; ");
+		sb.append("size=$(wc -c < " + file + "); echo $size; ");
+		sb.append("[ $size -le " + MAX_SIZE + " ] || exit 5; ");
+		// Weak checksums of the complete blocks
+		sb.append("od -An -v -tu1 " + file + " | awk -v n=" + b + " '");
+		sb.append("{ for (i = 1; i <= NF; i++) { a = (a + $i) % 65536; ");
+		sb.append("s = (s + a) % 65536; if (++c == n) { print a, s; a = 0; s = 0; c = 0 } } }'; ");
+		sb.append("echo --; ");
+		// Strong checksums of the complete blocks
+		sb.append("n=$(( size / " + b + " )); i=0; ");
+		sb.append("[ $n -le " + (MAX_BLOCKS * 2) + " ] || exit 4; ");
+		sb.append("while [ $i -lt $n ]; do dd if=" + file + " bs=" + b
+				+ " skip=$i count=1 2>/dev/null | md5sum; i=$((i + 1)); done");
+		ExecChannel exec = this.handler.exec(sb.toString(), -1);
+		if (exec.exitStatus() != 0)
+			return null;
+		String[] lines = exec.stdout().split("\r?\n");
+		Signature signature = new Signature(Long.parseLong(lines[0].trim()));
+		int i = 1, block = 0;
+		for (; i < lines.length && !lines[i].equals("--"); i++, block++) {
+			String[] sums = lines[i].trim().split(" ");
+			int weak = Integer.parseInt(sums[0]) | (Integer.parseInt(sums[1]) << 16);
+			if (!signature.weak.containsKey(weak))
+				signature.weak.put(weak, new ArrayList<Integer>());
+			signature.weak.get(weak).add(block);
+		}
+		for (i++; i < lines.length; i++)
+			signature.strong.add(lines[i].trim().split(" ")[0]);
+		if (signature.strong.size() != block)
+			return null;
+		return signature;
+	}
+
+	/**
+	 * Scans the local file with the rolling checksum, and describes it as a
+	 * sequence of ranges of the remote file and of the local file.
+	 */
+	private List<long[]> delta(final ByteBuffer buffer,
+			final Signature signature, final int b)
+			throws NoSuchAlgorithmException {
+		int n = buffer.limit();
+		List<long[]> instructions = new ArrayList<long[]>();
+		int position = 0, literalStart = 0;
+		int a = 0, s = 0;
+		boolean fresh = true;
+		while (position + b <= n) {
+			if (fresh) {
+				a = 0;
+				s = 0;
+				for (int i = position; i < position + b; i++) {
+					a = (a + (buffer.get(i) & 0xFF)) & 0xFFFF;
+					s = (s + a) & 0xFFFF;
+				}
+				fresh = false;
+			}
+			int match = -1;
+			List<Integer> candidates = signature.weak.get(a | (s << 16));
+			if (candidates != null) {
+				String digest = md5(buffer, position, b);
+				for (int candidate : candidates) {
+					if (signature.strong.get(candidate).equals(digest)) {
+						match = candidate;
+						break;
+					}
+				}
+			}
+			if (match != -1) {
+				if (literalStart < position)
+					add(instructions, -1, literalStart, position - literalStart);
+				add(instructions, (long) match * b, position, b);
+				position += b;
+				literalStart = position;
+				fresh = true;
+			} else {
+				if (position + b < n) {
+					int out = buffer.get(position) & 0xFF;
+					int in = buffer.get(position + b) & 0xFF;
+					a = (a - out + in) & 0xFFFF;
+					s = (s - b * out + a) & 0xFFFF;
+				}
+				position++;
+			}
+		}
+		if (literalStart < n)
+			add(instructions, -1, literalStart, n - literalStart);
+		return instructions;
+	}
+
+	/**
+	 * Adds an instruction, merging it with the previous one if they refer to
+	 * consecutive ranges
+	 */
+	private void add(final List<long[]> instructions, final long source,
+			final long position, final long length) {
+		if (!instructions.isEmpty()) {
+			long[] last = instructions.get(instructions.size() - 1);
+			boolean literals = source == -1 && last[0] == -1;
+			boolean blocks = source != -1 && last[0] != -1
+					&& last[0] + last[2] == source;
+			if (literals || blocks) {
+				last[2] += length;
+				return;
+			}
+		}
+		instructions.add(new long[] { source, position, length });
+	}
+
+	private void uploadLiterals(final ChannelSftp channel,
+			final ByteBuffer buffer, final List<long[]> instructions,
+			final String delta) throws SftpException {
+		final List<ByteBuffer> ranges = new ArrayList<ByteBuffer>();
+		for (long[] instruction : instructions) {
+			if (instruction[0] == -1) {
+				ByteBuffer range = buffer.duplicate();
+				range.position((int) instruction[1]);
+				range.limit((int) (instruction[1] + instruction[2]));
+				ranges.add(range);
+			}
+		}
+		channel.put(new InputStream() {
+			private int i = 0;
+			@Override public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+			}
+			@Override public int read(byte[] bytes, int offset, int length) {
+				while (i < ranges.size() && !ranges.get(i).hasRemaining())
+					i++;
+				if (i == ranges.size())
+					return -1;
+				ByteBuffer range = ranges.get(i);
+				int n = Math.min(length, range.remaining());
+				range.get(bytes, offset, n);
+				return n;
+			}
+		}, delta, ChannelSftp.OVERWRITE);
+	}
+
+	/**
+	 * @return a script that rebuilds the remote file from its old copy and
+	 *         the uploaded bytes, and prints the MD5 digest of the result. The
+	 *         result is written back into the existing file, which keeps its
+	 *         permissions, as an SFTP upload does.
+	 */
+	private String script(final String remote, final String delta,
+			final List<long[]> instructions, final boolean literals) {
+		String file = ShellUtils.quote(remote);
+		String _delta = ShellUtils.quote(delta);
+		String tmp = ShellUtils.quote(remote + ".amelia-tmp");
+		StringBuilder sb = new StringBuilder();
+		sb.append("{ ");
+		long offset = 0;
+		for (long[] instruction : instructions) {
+			if (instruction[0] == -1) {
+				sb.append("tail -c +" + (offset + 1) + " " + _delta
+						+ " | head -c " + instruction[2] + "; ");
+				offset += instruction[2];
+			} else {
+				sb.append("tail -c +" + (instruction[0] + 1) + " " + file
+						+ " | head -c " + instruction[2] + "; ");
+			}
+		}
+		sb.append("} > " + tmp + " && cat " + tmp + " > " + file + "; ");
+		sb.append("s=$?; rm -f " + tmp + "; ");
+		if (literals)
+			sb.append("rm -f " + _delta + "; ");
+		sb.append("[ $s -eq 0 ] && md5sum " + file);
+		return sb.toString();
+	}
+
+	private ByteBuffer map(final File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static String md5(final ByteBuffer buffer, final int position,
+			final int length) throws NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+		ByteBuffer range = buffer.duplicate();
+		range.position(position);
+		range.limit(position + length);
+		digest.update(range);
+		return String.format("%032x", new BigInteger(1, digest.digest()));
+	}
+
+}
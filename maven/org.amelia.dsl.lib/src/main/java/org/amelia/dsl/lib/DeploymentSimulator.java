@@ -0,0 +1,514 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+
+/**
+ * Predicts the duration of a deployment without connecting to any host. The
+ * tasks of a {@link DescriptorGraph} are replayed with a discrete-event
+ * simulation, using a scheduling policy, a number of workers and a number of
+ * channels per host. The duration of each command follows a distribution
+ * with the declared or recorded mean and standard deviation (see
+ * {@link DurationHistory}); when several runs are simulated, durations are
+ * drawn from a log-normal distribution with those parameters.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class DeploymentSimulator {
+
+	/**
+	 * The order in which ready tasks are started
+	 */
+	public enum Policy {
+		/**
+		 * In the order they became ready
+		 */
+		FIFO,
+		/**
+		 * Longest remaining path first
+		 */
+		CRITICAL_PATH
+	}
+
+	/**
+	 * The outcome of a simulation
+	 */
+	public static class Report {
+
+		private final long makespan;
+		private final long maxMakespan;
+		private final int runs;
+		private final List<String> criticalPath;
+		private final Map<String, Double> utilization;
+
+		public Report(final long makespan, final long maxMakespan,
+				final int runs, final List<String> criticalPath,
+				final Map<String, Double> utilization) {
+			this.makespan = makespan;
+			this.maxMakespan = maxMakespan;
+			this.runs = runs;
+			this.criticalPath = criticalPath;
+			this.utilization = utilization;
+		}
+
+		/**
+		 * @return the average predicted duration of the deployment (in
+		 *         milliseconds)
+		 */
+		public long makespan() {
+			return this.makespan;
+		}
+
+		/**
+		 * @return the longest predicted duration among all runs (in
+		 *         milliseconds)
+		 */
+		public long maxMakespan() {
+			return this.maxMakespan;
+		}
+
+		/**
+		 * @return the chain of tasks that determined the duration of the
+		 *         first run, from the first to the last one
+		 */
+		public List<String> criticalPath() {
+			return this.criticalPath;
+		}
+
+		/**
+		 * @return the fraction of the first run during which the channels of
+		 *         each host were busy
+		 */
+		public Map<String, Double> utilization() {
+			return this.utilization;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Predicted makespan: " + this.makespan + " ms");
+			if (this.runs > 1)
+				sb.append(" (average of " + this.runs + " runs, max "
+						+ this.maxMakespan + " ms)");
+			sb.append("\nCritical path:\n");
+			for (String task : this.criticalPath)
+				sb.append("  " + task + "\n");
+			if (!this.utilization.isEmpty()) {
+				sb.append("Utilization:\n");
+				for (Map.Entry<String, Double> e : this.utilization.entrySet())
+					sb.append(String.format("  %s: %.1f%%%n", e.getKey(),
+							e.getValue() * 100));
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * A task being simulated
+	 */
+	private static class Node {
+		private final String name;
+		private final Object resource;
+		private final CommandDescriptor descriptor;
+		private long estimate;
+		/**
+		 * The standard deviation of the duration, or 0 if it is unknown
+		 */
+		private long deviation;
+		private final List<Node> successors;
+		private final List<Node> predecessors;
+		private long priority;
+		private long sequence;
+		private int pending;
+		private long finish;
+
+		public Node(final String name, final Object resource,
+				final CommandDescriptor descriptor, final long estimate,
+				final long deviation) {
+			this.name = name;
+			this.resource = resource;
+			this.descriptor = descriptor;
+			this.estimate = estimate;
+			this.deviation = Math.max(0, deviation);
+			this.successors = new ArrayList<Node>();
+			this.predecessors = new ArrayList<Node>();
+		}
+	}
+
+	private final List<Node> nodes;
+
+	private Policy policy;
+
+	private int workers;
+
+	private int channels;
+
+	private double jitter;
+
+	private int runs;
+
+	private long seed;
+
+	/**
+	 * Creates a simulator for the tasks of the given graph, using the
+	 * durations recorded for its subsystem.
+	 * 
+	 * @param graph
+	 *            The graph to simulate (connections are not required)
+	 */
+	public DeploymentSimulator(final DescriptorGraph graph) {
+		this(graph, new DurationHistory(DurationHistory.file(graph.subsystem())));
+	}
+
+	/**
+	 * @param graph
+	 *            The graph to simulate (connections are not required)
+	 * @param history
+	 *            The durations of the commands
+	 */
+	public DeploymentSimulator(final DescriptorGraph graph,
+			final DurationHistory history) {
+		this();
+		Map<ScheduledTask<?>, List<ScheduledTask<?>>> successors = graph.successorTasks();
+		Map<ScheduledTask<?>, Node> nodes = new HashMap<ScheduledTask<?>, Node>();
+		for (ScheduledTask<?> task : successors.keySet()) {
+			CommandDescriptor descriptor = task.descriptor();
+			Host host = task.host();
+			long estimate = history.estimate(descriptor, host);
+			// Declared durations do not come with a deviation
+			long deviation = descriptor.expectedDuration() >= 0 ? 0
+					: history.deviation(descriptor, host);
+			Node node = new Node(host + ": " + descriptor.toCommandString(),
+					host, descriptor, estimate, deviation);
+			nodes.put(task, node);
+			this.nodes.add(node);
+		}
+		for (ScheduledTask<?> task : successors.keySet()) {
+			for (ScheduledTask<?> successor : successors.get(task))
+				link(nodes.get(task), nodes.get(successor));
+		}
+	}
+
+	/**
+	 * Creates a simulator for the given subsystems. Subsystems are deployed
+	 * one at a time, as soon as their dependencies are met.
+	 * 
+	 * @param graph
+	 *            The subsystems to simulate
+	 * @param durations
+	 *            The duration of each subsystem's deployment (e.g., the
+	 *            makespan predicted for its descriptor graph)
+	 */
+	public DeploymentSimulator(final SubsystemGraph graph,
+			final Map<Subsystem, Long> durations) {
+		this();
+		Map<Subsystem, Node> nodes = new HashMap<Subsystem, Node>();
+		for (Subsystem subsystem : graph.keySet()) {
+			Long duration = durations.get(subsystem);
+			Node node = new Node(subsystem.alias(), graph, null,
+					duration == null ? DurationHistory.DEFAULT_DURATION : duration, 0);
+			nodes.put(subsystem, node);
+			this.nodes.add(node);
+		}
+		for (Subsystem subsystem : graph.keySet()) {
+			for (Subsystem dependency : graph.get(subsystem))
+				link(nodes.get(dependency), nodes.get(subsystem));
+		}
+		// The subsystem graph deploys one subsystem at a time
+		this.channels = 1;
+	}
+
+	private DeploymentSimulator() {
+		this.nodes = new ArrayList<Node>();
+		this.policy = Policy.FIFO;
+		this.workers = Integer.MAX_VALUE;
+		this.channels = Integer.parseInt(
+				System.getProperty("amelia.max_channels", "1"));
+		this.jitter = 0;
+		this.runs = 1;
+		this.seed = 0;
+	}
+
+	private static void link(final Node node, final Node successor) {
+		node.successors.add(successor);
+		successor.predecessors.add(node);
+	}
+
+	public DeploymentSimulator withPolicy(final Policy policy) {
+		this.policy = policy;
+		return this;
+	}
+
+	/**
+	 * @param workers
+	 *            The maximum number of tasks executed concurrently
+	 */
+	public DeploymentSimulator withWorkers(final int workers) {
+		this.workers = workers;
+		return this;
+	}
+
+	/**
+	 * @param channels
+	 *            The maximum number of tasks executed concurrently in each
+	 *            host
+	 */
+	public DeploymentSimulator withChannels(final int channels) {
+		this.channels = channels;
+		return this;
+	}
+
+	/**
+	 * Declares the distribution of the duration of a command in all of its
+	 * hosts, replacing the declared or recorded one.
+	 * 
+	 * @param descriptor
+	 *            A command of the simulated graph
+	 * @param mean
+	 *            The mean duration (in milliseconds)
+	 * @param deviation
+	 *            The standard deviation of the duration (in milliseconds)
+	 */
+	public DeploymentSimulator withDuration(final CommandDescriptor descriptor,
+			final long mean, final long deviation) {
+		for (Node node : this.nodes) {
+			if (node.descriptor == descriptor) {
+				node.estimate = mean;
+				node.deviation = Math.max(0, deviation);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @param jitter
+	 *            The relative variation of the durations whose deviation is
+	 *            unknown: each duration is drawn uniformly from estimate * [1
+	 *            - jitter, 1 + jitter]
+	 */
+	public DeploymentSimulator withJitter(final double jitter) {
+		this.jitter = jitter;
+		return this;
+	}
+
+	/**
+	 * @param runs
+	 *            The number of simulations to average. A single run uses the
+	 *            mean durations; several runs draw them from their
+	 *            distributions
+	 * @param seed
+	 *            The seed used to draw durations
+	 */
+	public DeploymentSimulator withRuns(final int runs, final long seed) {
+		if (runs < 1)
+			throw new IllegalArgumentException("At least one run is required");
+		this.runs = runs;
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * @return the predicted makespan, critical path and utilization
+	 */
+	public Report simulate() {
+		Random random = new Random(this.seed);
+		computePriorities();
+		long total = 0, max = 0;
+		List<String> criticalPath = null;
+		Map<String, Double> utilization = null;
+		for (int i = 0; i < this.runs; i++) {
+			Map<Object, Long> busy = new LinkedHashMap<Object, Long>();
+			long makespan = run(random, busy);
+			total += makespan;
+			max = Math.max(max, makespan);
+			if (i == 0) {
+				criticalPath = criticalPath();
+				utilization = new LinkedHashMap<String, Double>();
+				for (Map.Entry<Object, Long> e : busy.entrySet()) {
+					if (e.getKey() instanceof Host) {
+						utilization.put(e.getKey().toString(), makespan == 0 ? 0
+								: e.getValue() / (double) (makespan * this.channels));
+					}
+				}
+			}
+		}
+		return new Report(total / this.runs, max,
+				this.runs, criticalPath, utilization);
+	}
+
+	/**
+	 * Simulates the execution of all tasks
+	 * 
+	 * @return the time at which the last task finishes
+	 */
+	private long run(final Random random, final Map<Object, Long> busy) {
+		Comparator<Node> order = new Comparator<Node>() {
+			@Override public int compare(Node n1, Node n2) {
+				if (policy == Policy.CRITICAL_PATH && n1.priority != n2.priority)
+					return n1.priority > n2.priority ? -1 : 1;
+				return Long.compare(n1.sequence, n2.sequence);
+			}
+		};
+		PriorityQueue<Node> running = new PriorityQueue<Node>(11,
+				new Comparator<Node>() {
+					@Override public int compare(Node n1, Node n2) {
+						return Long.compare(n1.finish, n2.finish);
+					}
+				});
+		PriorityQueue<Node> ready = new PriorityQueue<Node>(
+				Math.max(1, this.nodes.size()), order);
+		// Ready tasks whose host has no free channel
+		Map<Object, PriorityQueue<Node>> blocked = new HashMap<Object, PriorityQueue<Node>>();
+		Map<Object, Integer> inUse = new HashMap<Object, Integer>();
+		long sequence = 0;
+		for (Node node : this.nodes) {
+			node.pending = node.predecessors.size();
+			node.finish = -1;
+			if (node.pending == 0) {
+				node.sequence = sequence++;
+				ready.add(node);
+			}
+		}
+		long time = 0;
+		int executing = 0;
+		while (!ready.isEmpty() || !running.isEmpty()) {
+			while (executing < this.workers && !ready.isEmpty()) {
+				Node node = ready.poll();
+				Integer used = inUse.get(node.resource);
+				if (used != null && used >= this.channels) {
+					PriorityQueue<Node> queue = blocked.get(node.resource);
+					if (queue == null) {
+						queue = new PriorityQueue<Node>(11, order);
+						blocked.put(node.resource, queue);
+					}
+					queue.add(node);
+					continue;
+				}
+				long duration = duration(node, random);
+				node.finish = time + duration;
+				inUse.put(node.resource, used == null ? 1 : used + 1);
+				Long _busy = busy.get(node.resource);
+				busy.put(node.resource, (_busy == null ? 0 : _busy) + duration);
+				running.add(node);
+				executing++;
+			}
+			Node node = running.poll();
+			if (node == null)
+				break; // unreachable if the graph is acyclic
+			time = node.finish;
+			executing--;
+			inUse.put(node.resource, inUse.get(node.resource) - 1);
+			PriorityQueue<Node> queue = blocked.get(node.resource);
+			if (queue != null && !queue.isEmpty())
+				ready.add(queue.poll());
+			for (Node successor : node.successors) {
+				if (--successor.pending == 0) {
+					successor.sequence = sequence++;
+					ready.add(successor);
+				}
+			}
+		}
+		return time;
+	}
+
+	private long duration(final Node node, final Random random) {
+		if (this.runs == 1)
+			return node.estimate;
+		if (node.deviation > 0 && node.estimate > 0) {
+			// Log-normal distribution with the given mean and deviation
+			double mean = node.estimate, deviation = node.deviation;
+			double variance = Math.log(1 + deviation * deviation / (mean * mean));
+			double mu = Math.log(mean) - variance / 2;
+			return Math.round(Math.exp(mu + Math.sqrt(variance) * random.nextGaussian()));
+		}
+		if (this.jitter == 0)
+			return node.estimate;
+		double factor = 1 + this.jitter * (2 * random.nextDouble() - 1);
+		return Math.max(0, Math.round(node.estimate * factor));
+	}
+
+	/**
+	 * @return the tasks that delayed the last task, from the first to the
+	 *         last one: starting at the last task, the predecessor finishing
+	 *         last is followed
+	 */
+	private List<String> criticalPath() {
+		Node last = null;
+		for (Node node : this.nodes) {
+			if (last == null || node.finish > last.finish)
+				last = node;
+		}
+		LinkedList<String> path = new LinkedList<String>();
+		while (last != null) {
+			path.addFirst(last.name);
+			Node previous = null;
+			for (Node predecessor : last.predecessors) {
+				if (previous == null || predecessor.finish > previous.finish)
+					previous = predecessor;
+			}
+			last = previous;
+		}
+		return path;
+	}
+
+	/**
+	 * Computes the estimated duration of the longest path starting at each
+	 * task, in reverse topological order
+	 */
+	private void computePriorities() {
+		Map<Node, Integer> pending = new HashMap<Node, Integer>();
+		LinkedList<Node> ready = new LinkedList<Node>();
+		for (Node node : this.nodes) {
+			pending.put(node, node.predecessors.size());
+			if (node.predecessors.isEmpty())
+				ready.add(node);
+		}
+		List<Node> order = new ArrayList<Node>(this.nodes.size());
+		while (!ready.isEmpty()) {
+			Node node = ready.removeFirst();
+			order.add(node);
+			for (Node successor : node.successors) {
+				int n = pending.get(successor) - 1;
+				pending.put(successor, n);
+				if (n == 0)
+					ready.add(successor);
+			}
+		}
+		for (int i = order.size() - 1; i >= 0; i--) {
+			Node node = order.get(i);
+			long max = 0;
+			for (Node successor : node.successors)
+				max = Math.max(max, successor.priority);
+			node.priority = max + node.estimate;
+		}
+	}
+
+}
@@ -18,6 +18,7 @@
  */
 package org.amelia.dsl.lib;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
 import java.util.ArrayList;
@@ -25,12 +26,17 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Observable;
-import java.util.Observer;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,6 +45,9 @@ import org.amelia.dsl.lib.descriptors.CommandDescriptor;
 import org.amelia.dsl.lib.descriptors.Host;
 import org.amelia.dsl.lib.util.Configuration;
 import org.amelia.dsl.lib.util.Log;
+import org.amelia.dsl.lib.util.Probes;
+import org.amelia.dsl.lib.util.SharedFiles;
+import org.amelia.dsl.lib.util.ShellUtils;
 import org.amelia.dsl.lib.util.Strings;
 import org.amelia.dsl.lib.util.Threads;
 import org.apache.logging.log4j.LogManager;
@@ -53,73 +62,47 @@ public class DescriptorGraph
 		extends HashMap<CommandDescriptor, List<CommandDescriptor>> {
 
 	public class DependencyThread extends Thread
-			implements Observer, Comparable<DependencyThread> {
+			implements Comparable<DependencyThread> {
 		
 		private final UUID internalId;
 		private final CommandDescriptor descriptor;
 		private final SSHHandler handler;
 		private final ScheduledTask<?> command;
-		private final List<CommandDescriptor> dependencies;
 		private final CountDownLatch doneSignal;
 		private final CountDownLatch mainDoneSignal;
 		private volatile boolean shutdown;
 
 		/**
-		 * "dependencies" contains the descriptors on which this thread depends,
-		 * while "actualDependencies" corresponds to the number of tasks
-		 * executing those descriptors.
+		 * The threads waiting for this one to finish. Assigned before
+		 * starting the thread.
+		 */
+		private DependencyThread[] successors;
+
+		/**
+		 * "actualDependencies" corresponds to the number of tasks that must
+		 * finish before executing this thread's task.
 		 */
 		public DependencyThread(final CommandDescriptor descriptor,
 				final SSHHandler handler, final ScheduledTask<?> command,
-				final List<CommandDescriptor> dependencies,
 				final int actualDependencies, final CountDownLatch doneSignal) {
 			this.internalId = UUID.randomUUID();
 			this.descriptor = descriptor;
 			this.handler = handler;
 			this.command = command;
-			this.dependencies = dependencies;
 			this.doneSignal = new CountDownLatch(actualDependencies);
 			this.mainDoneSignal = doneSignal;
 			this.shutdown = false;
-
-			// Make this thread observe the corresponding dependencies
-			for (CommandDescriptor dependency : this.dependencies) {
-				dependency.addObserver(this);
-			}
+			this.successors = new DependencyThread[0];
 		}
 
 		public void run() {
 			try {
 				this.doneSignal.await();
 				if (!this.shutdown) {
-					if (Boolean.valueOf(System.getProperty("amelia.debug_mode"))) {
-						if (this.descriptor.isExecution()) {
-							Log.debug(this.handler.host(), "Composite awaiting execution: "
-									+ getCompositeName(this.descriptor.toCommandString()));
-						} else {
-							Log.debug(this.handler.host(), "Command awaiting execution: "
-									+ this.descriptor.toCommandString());
-						}
-					}
-					if (this.descriptor.shouldExecute())
-						this.handler.executeCommand(this.descriptor, this.command);
-
-					// Notify when command is not executed
-					if (!this.descriptor.shouldExecute())
-						Log.info(
-							this.handler.host(),
-							String.format("not executed: %s", this.descriptor.toCommandString())
-						);
-					// prevent dependencies from missing the notification
-					synchronized(this.descriptor) {
-						if (this.descriptor.isExecution()) {
-							// FIXME: Temporary workaround to avoid service-not-bound
-							// errors (RMI) in FraSCAti executions
-							Thread.sleep(2000);
-						}
-						this.descriptor.done(this.handler.host());
-						this.descriptor.notifyObservers();
-					}
+					executeTask(this.descriptor, this.handler, this.command);
+					this.descriptor.done(this.handler.host());
+					for (DependencyThread successor : this.successors)
+						successor.doneSignal.countDown();
 				}
 			} catch (Exception e) {
 				logger.error(e);
@@ -130,20 +113,6 @@ public class DescriptorGraph
 			}
 		}
 		
-		private String getCompositeName(final String runCommand) {
-			String command = runCommand;
-			Pattern pattern = Pattern.compile("(frascati run) (\\-r [0-9]+ )?(.*)");
-			Matcher matcher = pattern.matcher(command);
-			if (matcher.find()) {
-				command = matcher.group(3);
-			}
-			return command.split(" ")[0];
-		}
-
-		public synchronized void update(Observable o, Object arg) {
-			this.doneSignal.countDown();
-		}
-		
 		public boolean equals(Object obj) {
 			if (this == obj)
 				return true;
@@ -158,7 +127,6 @@ public class DescriptorGraph
 
 		public void shutdown() {
 			this.shutdown = true;
-			this.descriptor.deleteObserver(this);
 			this.handler.shutdownTaskQueue();
 			while (this.doneSignal.getCount() > 0)
 				this.doneSignal.countDown();
@@ -182,6 +150,27 @@ public class DescriptorGraph
 	
 	private final Configuration configuration;
 
+	/**
+	 * The executor used when the "ready_queue" scheduler is selected
+	 */
+	private ReadyQueueExecutor executor;
+
+	/**
+	 * The record of executed tasks, used to resume failed deployments
+	 */
+	private ExecutionJournal journal;
+
+	/**
+	 * The durations of the commands in previous deployments
+	 */
+	private DurationHistory history;
+
+	/**
+	 * The sequences of commands executed as a single script, indexed by their
+	 * first command
+	 */
+	private Map<CommandDescriptor, List<CommandDescriptor>> batches;
+
 	/**
 	 * The variable indicating whether the current deployment is being shutting
 	 * down
@@ -201,6 +190,7 @@ public class DescriptorGraph
 		this.sshHosts = new HashSet<Host>();
 		this.ftpHosts = new HashSet<Host>();
 		this.threads = new TreeSet<DependencyThread>();
+		this.batches = new HashMap<CommandDescriptor, List<CommandDescriptor>>();
 		this.shuttingDown = false;
 	}
 	
@@ -222,7 +212,7 @@ public class DescriptorGraph
 				continue;
 			}
 			// The only known use of the FTP connection is the AssetBundle
-			if (descriptor instanceof AssetBundle)
+			if (descriptor instanceof AssetBundle && !AssetBundle.usesSFTP())
 				this.ftpHosts.addAll(descriptor.hosts());
 			else
 				this.sshHosts.addAll(descriptor.hosts());
@@ -270,31 +260,342 @@ public class DescriptorGraph
 			return;
 		if (stopPreviousExecutions && this.sshHosts.size() > 0)
 			stopAllExecutions();
+		openJournal();
+		// Durations are only used to prioritize the longest paths
+		this.history = null;
+		if ("critical_path".equals(System.getProperty("amelia.scheduler_policy")))
+			this.history = new DurationHistory(DurationHistory.file(this.subsystem));
+		if (Boolean.getBoolean("amelia.rule_batching")
+				&& !"exec".equals(System.getProperty("amelia.transport")))
+			this.batches = findBatches();
 		
 		int totalTasks = countTotalTasks();
-		CountDownLatch doneSignal = new CountDownLatch(totalTasks);
-		
-		for (CommandDescriptor e : keySet()) {
-			List<CommandDescriptor> dependencies = get(e);
-			List<ScheduledTask<?>> tasks = this.tasks.get(e);
-			int deps = countDependencyThreads(dependencies);
-			for (ScheduledTask<?> task : tasks) {
-				DependencyThread thread = new DependencyThread(e,
-						task.host().ssh(), task, dependencies, deps, doneSignal);
-				thread.setUncaughtExceptionHandler(
-						Threads.exceptionHandler());
-				threads.add(thread);
+		if ("ready_queue".equals(System.getProperty("amelia.scheduler"))) {
+			int workers = Integer.parseInt(System.getProperty("amelia.scheduler_workers"));
+			if (workers <= 0) {
+				// As many tasks at once as the hosts' channels allow
+				int channels = Math.max(1, Integer.parseInt(
+						System.getProperty("amelia.max_channels")));
+				workers = Math.max(1, hosts().size() * channels);
 			}
+			boolean criticalPathFirst = "critical_path".equals(
+					System.getProperty("amelia.scheduler_policy"));
+			this.executor = new ReadyQueueExecutor(this, this.tasks, workers,
+					criticalPathFirst);
+			Log.info("Executing commands (" + totalTasks + ")");
+			this.executor.execute();
+		} else {
+			CountDownLatch doneSignal = new CountDownLatch(totalTasks);
+			Map<ScheduledTask<?>, DependencyThread> _threads = new HashMap<ScheduledTask<?>, DependencyThread>();
+			for (CommandDescriptor e : keySet()) {
+				List<ScheduledTask<?>> tasks = this.tasks.get(e);
+				for (ScheduledTask<?> task : tasks) {
+					int deps = countDependencyTasks(e, task.host());
+					DependencyThread thread = new DependencyThread(e,
+							task.host().ssh(), task, deps, doneSignal);
+					thread.setUncaughtExceptionHandler(
+							Threads.exceptionHandler());
+					threads.add(thread);
+					_threads.put(task, thread);
+				}
+			}
+			Map<ScheduledTask<?>, List<ScheduledTask<?>>> successors = successorTasks();
+			for (ScheduledTask<?> task : _threads.keySet()) {
+				List<ScheduledTask<?>> _successors = successors.get(task);
+				DependencyThread[] array = new DependencyThread[_successors.size()];
+				for (int i = 0; i < array.length; i++)
+					array[i] = _threads.get(_successors.get(i));
+				_threads.get(task).successors = array;
+			}
+			Log.info("Executing commands (" + totalTasks + ")");
+			for (DependencyThread thread : this.threads) {
+				thread.start();
+			}
+			doneSignal.await();
 		}
-		Log.info("Executing commands (" + totalTasks + ")");
-		for (DependencyThread thread : this.threads) {
-			thread.start();
-		}
-		doneSignal.await();
+		if (this.journal != null)
+			this.journal.close();
+		if (this.history != null)
+			this.history.save();
+		if (SharedFiles.isEnabled())
+			SharedFiles.getInstance().clear();
 		if(shutdownAfterDeployment)
 			shutdown(stopExecutionsWhenFinish);
 	}
+
+	/**
+	 * Executes a task once its dependencies have been met, unless the
+	 * execution conditions of its descriptor do not hold.
+	 * 
+	 * @param descriptor
+	 *            The descriptor of the task
+	 * @param handler
+	 *            The SSH handler of the host in which the task is executed
+	 * @param task
+	 *            The task to execute
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the task to
+	 *             finish
+	 */
+	void executeTask(final CommandDescriptor descriptor,
+			final SSHHandler handler, final ScheduledTask<?> task)
+					throws InterruptedException {
+		// Tasks released by cancelled commands are not executed
+		if (this.shuttingDown)
+			return;
+		if (Boolean.valueOf(System.getProperty("amelia.debug_mode"))) {
+			if (descriptor.isExecution()) {
+				Log.debug(handler.host(), "Composite awaiting execution: "
+						+ compositeName(descriptor.toCommandString()));
+			} else {
+				Log.debug(handler.host(), "Command awaiting execution: "
+						+ descriptor.toCommandString());
+			}
+		}
+		if (this.journal != null && isResumable(descriptor)
+				&& this.journal.isCompleted(descriptor, handler.host())) {
+			Log.info(
+				handler.host(),
+				String.format("already executed: %s", descriptor.toCommandString())
+			);
+			return;
+		}
+		List<CommandDescriptor> batch = this.batches.get(descriptor);
+		if (batch != null && descriptor.shouldExecute()) {
+			List<CommandDescriptor> steps = pendingSteps(batch, handler.host());
+			if (steps.size() > 1)
+				handler.batch(steps);
+		}
+		long start = System.currentTimeMillis();
+		boolean executed = descriptor.shouldExecute()
+				&& handler.executeCommand(descriptor, task);
+		if (executed && this.journal != null && isResumable(descriptor))
+			this.journal.record(descriptor, handler.host());
+
+		// Notify when command is not executed
+		if (!descriptor.shouldExecute())
+			Log.info(
+				handler.host(),
+				String.format("not executed: %s", descriptor.toCommandString())
+			);
+		if (descriptor.isExecution() && descriptor.shouldExecute()) {
+			if (descriptor.readinessProbes().isEmpty()) {
+				// FIXME: Temporary workaround to avoid service-not-bound
+				// errors (RMI) in FraSCAti executions without probes
+				Thread.sleep(2000);
+			} else {
+				long timeout = Long.parseLong(
+						System.getProperty("amelia.readiness_timeout"));
+				Probes.await(handler.host(), descriptor, timeout);
+			}
+		}
+		if (executed && this.history != null)
+			this.history.record(descriptor, handler.host(),
+					System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @return the durations of the commands in previous deployments, or
+	 *         {@code null} if the longest paths are not prioritized
+	 */
+	DurationHistory history() {
+		return this.history;
+	}
+
+	/**
+	 * Opens the execution journal of this graph, if the property
+	 * {@code amelia.journal} or {@code amelia.resume} is set. In the latter
+	 * case, tasks recorded by the previous deployment are not executed again.
+	 */
+	private void openJournal() throws IOException {
+		this.journal = null;
+		boolean resume = Boolean.getBoolean("amelia.resume");
+		if (!resume && !Boolean.getBoolean("amelia.journal"))
+			return;
+		File file = new File("sessions" + File.separator + this.subsystem,
+				"journal.log");
+		this.journal = new ExecutionJournal(this.subsystem, file, resume);
+		if (resume)
+			Log.info("Resuming deployment (" + this.subsystem + ")");
+	}
+
+	/**
+	 * Only asset bundles and plain commands can be skipped. Executions and
+	 * commands that change the shell (e.g., {@code cd}, {@code export} or
+	 * {@code source}) are always repeated, since the state they produce does
+	 * not survive the previous deployment. So are commands with a custom
+	 * callable (e.g., fetching a value), whose result later commands may
+	 * use.
+	 * 
+	 * @return whether the descriptor can be skipped when resuming a deployment
+	 */
+	private static boolean isResumable(final CommandDescriptor descriptor) {
+		if (descriptor instanceof AssetBundle)
+			return true;
+		return descriptor.hasDefaultCallable() && !descriptor.isExecution()
+				&& !ShellUtils.changesShellState(descriptor.toCommandString());
+	}
+
+	/**
+	 * Finds the sequences of commands that can be executed as a single
+	 * script, that is, chains of commands in which each command only depends
+	 * on the previous one in the same host (e.g., the commands of a rule),
+	 * and no other command depends on them but the next one.
+	 * 
+	 * @return the sequences of two or more commands, indexed by their first
+	 *         command
+	 */
+	private Map<CommandDescriptor, List<CommandDescriptor>> findBatches() {
+		Map<CommandDescriptor, List<CommandDescriptor>> dependents = new HashMap<CommandDescriptor, List<CommandDescriptor>>();
+		for (CommandDescriptor descriptor : keySet())
+			dependents.put(descriptor, new ArrayList<CommandDescriptor>());
+		for (CommandDescriptor descriptor : keySet()) {
+			for (CommandDescriptor dependency : get(descriptor))
+				dependents.get(dependency).add(descriptor);
+		}
+		Map<CommandDescriptor, List<CommandDescriptor>> batches = new HashMap<CommandDescriptor, List<CommandDescriptor>>();
+		for (CommandDescriptor descriptor : keySet()) {
+			List<CommandDescriptor> _dependencies = get(descriptor);
+			if (!isBatchable(descriptor) || (_dependencies.size() == 1
+					&& continues(_dependencies.get(0), descriptor, dependents)))
+				continue;
+			List<CommandDescriptor> batch = new ArrayList<CommandDescriptor>();
+			batch.add(descriptor);
+			CommandDescriptor last = descriptor;
+			while (dependents.get(last).size() == 1
+					&& continues(last, dependents.get(last).get(0), dependents)) {
+				last = dependents.get(last).get(0);
+				batch.add(last);
+			}
+			if (batch.size() > 1)
+				batches.put(descriptor, batch);
+		}
+		return batches;
+	}
+
+	/**
+	 * @return whether the given command can be appended to the script
+	 *         containing its only dependency
+	 */
+	private boolean continues(final CommandDescriptor dependency,
+			final CommandDescriptor descriptor,
+			final Map<CommandDescriptor, List<CommandDescriptor>> dependents) {
+		return isBatchable(dependency)
+				&& isBatchable(descriptor)
+				&& get(descriptor).size() == 1
+				&& descriptor.isSameHostDependency(dependency)
+				&& dependents.get(dependency).size() == 1
+				&& descriptor.hosts().equals(dependency.hosts());
+	}
+
+	/**
+	 * Executions, background commands and commands waiting for a custom
+	 * release regexp or readiness probes are executed on their own, as their
+	 * end is not marked by the shell. So are commands with a custom callable
+	 * task, as they do not (only) send their command to the shell.
+	 * 
+	 * @return whether the descriptor can be executed within a script
+	 */
+	private static boolean isBatchable(final CommandDescriptor descriptor) {
+		String command = descriptor.toCommandString().trim();
+		return !(descriptor instanceof AssetBundle)
+				&& descriptor.hasDefaultCallable()
+				&& !command.isEmpty()
+				&& !descriptor.isExecution()
+				&& descriptor.readinessProbes().isEmpty()
+				&& descriptor.releaseRegexp().equals(ShellUtils.ameliaPromptRegexp())
+				&& !(command.endsWith("&") && !command.endsWith("&&"));
+	}
+
+	/**
+	 * Conditions of later steps may depend on the execution of previous ones,
+	 * so they cannot be evaluated in advance.
+	 * 
+	 * @return the steps of the given sequence that must be executed in the
+	 *         given host, up to the first step (but the first one) having
+	 *         execution conditions
+	 */
+	private List<CommandDescriptor> pendingSteps(
+			final List<CommandDescriptor> batch, final Host host) {
+		List<CommandDescriptor> steps = new ArrayList<CommandDescriptor>();
+		for (int i = 0; i < batch.size(); i++) {
+			CommandDescriptor step = batch.get(i);
+			if (i > 0 && step.hasExecutionConditions())
+				break;
+			if (this.journal == null || !isResumable(step)
+					|| !this.journal.isCompleted(step, host))
+				steps.add(step);
+		}
+		return steps;
+	}
+
+	private static String compositeName(final String runCommand) {
+		String command = runCommand;
+		Pattern pattern = Pattern.compile("(frascati run) (\\-r [0-9]+ )?(.*)");
+		Matcher matcher = pattern.matcher(command);
+		if (matcher.find()) {
+			command = matcher.group(3);
+		}
+		return command.split(" ")[0];
+	}
 		
+	/**
+	 * A task opening a connection. If the task is abandoned (i.e., the
+	 * connection deadline expired), the connection is closed once it is
+	 * opened.
+	 */
+	private abstract class Connection implements Callable<Boolean> {
+
+		private boolean finished;
+
+		private boolean abandoned;
+
+		/**
+		 * Whether this task opened a new connection
+		 */
+		private boolean opened;
+
+		/**
+		 * @return whether a new connection was opened
+		 */
+		protected abstract boolean open() throws Exception;
+
+		protected abstract void close() throws IOException;
+
+		@Override
+		public Boolean call() throws Exception {
+			try {
+				boolean opened = open();
+				synchronized (this) {
+					this.opened = opened;
+				}
+				return true;
+			} finally {
+				synchronized (this) {
+					this.finished = true;
+					if (this.abandoned)
+						closeIfOpened();
+				}
+			}
+		}
+
+		public synchronized void abandon() {
+			this.abandoned = true;
+			if (this.finished)
+				closeIfOpened();
+		}
+
+		private void closeIfOpened() {
+			if (!this.opened)
+				return;
+			try {
+				close();
+			} catch (IOException e) {
+				logger.warn("Error closing an abandoned connection", e);
+			}
+		}
+	}
+
 	private boolean establishConnections() throws InterruptedException {
 		final List<Boolean> connectionOk = new ArrayList<Boolean>();
 		Thread setupThread = new Thread() {
@@ -327,13 +628,68 @@ public class DescriptorGraph
 		return total;
 	}
 	
-	private int countDependencyThreads(List<CommandDescriptor> dependencies) {
+	/**
+	 * @param descriptor
+	 *            A descriptor of this graph
+	 * @param host
+	 *            One of the hosts in which the descriptor is executed
+	 * @return the number of tasks that must finish before executing the
+	 *         descriptor in the given host
+	 */
+	int countDependencyTasks(CommandDescriptor descriptor, Host host) {
 		int n = 0;
-		for (CommandDescriptor e : dependencies)
-			n += this.tasks.get(e).size();
+		for (CommandDescriptor e : get(descriptor)) {
+			if (waitsForSameHostOnly(descriptor, e, host))
+				n++;
+			else
+				n += this.tasks.get(e).size();
+		}
 		return n;
 	}
 
+	/**
+	 * @return the tasks that wait for each task of this graph, that is, the
+	 *         tasks of the descriptors depending on the task's descriptor
+	 *         (only those in the same host, for same-host dependencies)
+	 */
+	Map<ScheduledTask<?>, List<ScheduledTask<?>>> successorTasks() {
+		Map<ScheduledTask<?>, List<ScheduledTask<?>>> successors = new HashMap<ScheduledTask<?>, List<ScheduledTask<?>>>();
+		for (List<ScheduledTask<?>> tasks : this.tasks.values()) {
+			for (ScheduledTask<?> task : tasks)
+				successors.put(task, new ArrayList<ScheduledTask<?>>());
+		}
+		for (CommandDescriptor descriptor : keySet()) {
+			for (CommandDescriptor dependency : get(descriptor)) {
+				List<ScheduledTask<?>> dependencyTasks = this.tasks.get(dependency);
+				for (ScheduledTask<?> task : this.tasks.get(descriptor)) {
+					Host host = task.host();
+					for (ScheduledTask<?> dependencyTask : dependencyTasks) {
+						if (!waitsForSameHostOnly(descriptor, dependency, host)
+								|| dependencyTask.host().equals(host))
+							successors.get(dependencyTask).add(task);
+					}
+				}
+			}
+		}
+		return successors;
+	}
+
+	/**
+	 * @param descriptor
+	 *            A descriptor of this graph
+	 * @param dependency
+	 *            One of the dependencies of the descriptor
+	 * @param host
+	 *            One of the hosts in which the descriptor is executed
+	 * @return whether the execution of the descriptor in the given host only
+	 *         waits for the execution of the dependency in the same host
+	 */
+	boolean waitsForSameHostOnly(CommandDescriptor descriptor,
+			CommandDescriptor dependency, Host host) {
+		return descriptor.isSameHostDependency(dependency)
+				&& dependency.hosts().contains(host);
+	}
+
 	/**
 	 * Closes the FTP connection with the corresponding hosts.
 	 * 
@@ -398,17 +754,27 @@ public class DescriptorGraph
 	 * @throws SocketException
 	 *             If there is a connection error
 	 */
-	private void openFTPConnections()
-			throws InterruptedException, SocketException, IOException {
+	private void openFTPConnections() throws Exception {
 		if (!this.ftpHosts.isEmpty())
 			Log.info("Establishing FTP connections (" + this.ftpHosts.size() + ")");
-		for (Host host : this.ftpHosts) {
-			boolean connected = host.ftp() != null && host.ftp().isConnected();
-			if (host.openFTPConnection() && !connected) {
-				logger.info("FTP connection for " + host
-						+ " was successfully established");
-			}
+		List<Connection> connections = new ArrayList<Connection>();
+		for (final Host host : this.ftpHosts) {
+			connections.add(new Connection() {
+				@Override protected boolean open() throws Exception {
+					boolean connected = host.ftp() != null && host.ftp().isConnected();
+					if (host.openFTPConnection() && !connected) {
+						logger.info("FTP connection for " + host
+								+ " was successfully established");
+						return true;
+					}
+					return false;
+				}
+				@Override protected void close() throws IOException {
+					host.closeFTPConnection();
+				}
+			});
 		}
+		openConnections(connections);
 	}
 
 	/**
@@ -427,12 +793,70 @@ public class DescriptorGraph
 	private void openSSHConnections() throws Exception {
 		if (!this.sshHosts.isEmpty())
 			Log.info("Establishing SSH connections (" + this.sshHosts.size() + ")");
-		for (Host host : this.sshHosts) {
-			boolean connected = host.ssh() != null && host.ssh().isConnected();
-			if (host.openSSHConnection(this.subsystem) && !connected) {
-				logger.info("SSH connection for " + host
-						+ " was successfully established");
+		List<Connection> connections = new ArrayList<Connection>();
+		for (final Host host : this.sshHosts) {
+			connections.add(new Connection() {
+				@Override protected boolean open() throws Exception {
+					boolean connected = host.ssh() != null && host.ssh().isConnected();
+					if (host.openSSHConnection(subsystem) && !connected) {
+						logger.info("SSH connection for " + host
+								+ " was successfully established");
+						return true;
+					}
+					return false;
+				}
+				@Override protected void close() throws IOException {
+					host.closeSSHConnection();
+				}
+			});
+		}
+		openConnections(connections);
+	}
+
+	/**
+	 * Opens the given connections in parallel. At most
+	 * {@code amelia.connection_workers} connections are opened at the same
+	 * time, and all of them must be opened within
+	 * {@code amelia.connection_deadline} milliseconds (unless it is 0).
+	 * 
+	 * @param connections
+	 *            The tasks opening each connection
+	 * @throws Exception
+	 *             If any of the connections cannot be opened, or if the
+	 *             deadline expires. Connections still being opened when the
+	 *             deadline expires are closed as soon as they are opened.
+	 */
+	private void openConnections(final List<Connection> connections)
+			throws Exception {
+		if (connections.isEmpty())
+			return;
+		int workers = Integer.parseInt(System.getProperty("amelia.connection_workers"));
+		long deadline = Long.parseLong(System.getProperty("amelia.connection_deadline"));
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(workers, connections.size())));
+		try {
+			List<Future<Boolean>> futures = deadline > 0
+					? executor.invokeAll(connections, deadline, TimeUnit.MILLISECONDS)
+					: executor.invokeAll(connections);
+			// Connects cannot be interrupted, so they complete in the background
+			for (int i = 0; i < futures.size(); i++) {
+				if (futures.get(i).isCancelled())
+					connections.get(i).abandon();
+			}
+			for (Future<Boolean> future : futures) {
+				try {
+					future.get();
+				} catch (CancellationException e) {
+					throw new Exception("Connections could not be established within "
+							+ deadline + " ms");
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw e;
+				}
 			}
+		} finally {
+			executor.shutdownNow();
 		}
 	}
 	
@@ -458,11 +882,18 @@ public class DescriptorGraph
 			shuttingDown = true;
 			Log.info("Shutting down deployment (" + this.subsystem + ")");
 			try {
+				cancel();
 				if (stopAllExecutedComponents)
 					stopAllExecutions();
 				else
 					stopExecutions(compositeNames);
 				stopCurrentThreads();
+				if (this.journal != null)
+					this.journal.close();
+				if (this.history != null)
+					this.history.save();
+				if (SharedFiles.isEnabled())
+					SharedFiles.getInstance().clear();
 				closeFTPConnections();
 				closeSSHConnections();
 			} catch (Exception e) {
@@ -474,6 +905,52 @@ public class DescriptorGraph
 		}
 	}
 	
+	/**
+	 * Cancels the commands of this graph in execution, in all hosts at the
+	 * same time. Interrupted commands are given {@code
+	 * amelia.cancellation_grace_period} milliseconds to finish before being
+	 * killed.
+	 * 
+	 * @return the number of cancelled commands
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the commands
+	 *             to be cancelled
+	 */
+	public int cancel() throws InterruptedException {
+		final long gracePeriod = Long.parseLong(
+				System.getProperty("amelia.cancellation_grace_period"));
+		List<Callable<Integer>> cancellations = new ArrayList<Callable<Integer>>();
+		for (final Host host : this.sshHosts) {
+			if (host.ssh() == null)
+				continue;
+			cancellations.add(new Callable<Integer>() {
+				@Override public Integer call() throws Exception {
+					return host.ssh().cancel(gracePeriod);
+				}
+			});
+		}
+		if (cancellations.isEmpty())
+			return 0;
+		int workers = Integer.parseInt(System.getProperty("amelia.connection_workers"));
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(workers, cancellations.size())));
+		int cancelled = 0;
+		try {
+			for (Future<Integer> future : executor.invokeAll(cancellations)) {
+				try {
+					cancelled += future.get();
+				} catch (ExecutionException e) {
+					logger.error(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		if (cancelled > 0)
+			Log.info("Cancelled commands in execution (" + cancelled + ")");
+		return cancelled;
+	}
+
 	public void stopExecutions(final String[] compositeNames) throws IOException {
 		Map<Host, List<CommandDescriptor>> executionsPerHost = 
 				new HashMap<Host, List<CommandDescriptor>>();
@@ -520,6 +997,14 @@ public class DescriptorGraph
 	}
 
 	public void stopCurrentThreads() throws InterruptedException {
+		if (this.executor != null) {
+			// Release the workers waiting for their commands to be executed
+			for (Host host : this.sshHosts) {
+				if (host.ssh() != null)
+					host.ssh().shutdownTaskQueue();
+			}
+			this.executor.shutdown();
+		}
 		for (DependencyThread thread : this.threads)
 			thread.shutdown();
 		for (DependencyThread thread : this.threads)
@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.amelia.dsl.lib.util.ResultCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The durations of the commands executed in previous deployments. For each
+ * command and host, an exponential moving average of its duration is kept,
+ * together with an exponential moving standard deviation.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class DurationHistory {
+
+	/**
+	 * The weight of the last duration in the moving average
+	 */
+	private static final double WEIGHT = 0.5;
+
+	/**
+	 * The duration assumed for commands without declared or recorded duration
+	 * (in milliseconds)
+	 */
+	public static final long DEFAULT_DURATION = 1000;
+
+	private final File file;
+
+	private final Properties durations;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(DurationHistory.class);
+
+	/**
+	 * @param file
+	 *            The file containing the durations (it may not exist)
+	 */
+	public DurationHistory(final File file) {
+		this.file = file;
+		this.durations = new Properties();
+		if (file.exists()) {
+			InputStream input = null;
+			try {
+				input = new FileInputStream(file);
+				this.durations.load(input);
+			} catch (IOException e) {
+				logger.warn("Could not read the duration history " + file, e);
+			} finally {
+				close(input);
+			}
+		}
+	}
+
+	/**
+	 * @param subsystem
+	 *            The name of a subsystem
+	 * @return the file in which the durations of the subsystem's commands are
+	 *         stored
+	 */
+	public static File file(final String subsystem) {
+		return new File("sessions" + File.separator + subsystem,
+				"durations.properties");
+	}
+
+	/**
+	 * Records the duration of a command
+	 */
+	public synchronized void record(final CommandDescriptor descriptor,
+			final Host host, final long duration) {
+		String key = key(descriptor, host);
+		String previous = this.durations.getProperty(key);
+		long average = duration;
+		double variance = 0;
+		if (previous != null) {
+			long mean = Long.parseLong(previous);
+			long deviation = Long.parseLong(
+					this.durations.getProperty(key + ".deviation", "0"));
+			double difference = duration - mean;
+			average = Math.round(mean + WEIGHT * difference);
+			variance = (1 - WEIGHT) * (deviation * (double) deviation
+					+ WEIGHT * difference * difference);
+		}
+		this.durations.setProperty(key, String.valueOf(average));
+		this.durations.setProperty(key + ".deviation",
+				String.valueOf(Math.round(Math.sqrt(variance))));
+	}
+
+	/**
+	 * @param descriptor
+	 *            A command descriptor
+	 * @param host
+	 *            A host in which the descriptor is executed
+	 * @return the recorded duration of the command in the host, or -1 if there
+	 *         is none
+	 */
+	public synchronized long recorded(final CommandDescriptor descriptor,
+			final Host host) {
+		String duration = this.durations.getProperty(key(descriptor, host));
+		return duration == null ? -1 : Long.parseLong(duration);
+	}
+
+	/**
+	 * @param descriptor
+	 *            A command descriptor
+	 * @param host
+	 *            A host in which the descriptor is executed
+	 * @return the recorded standard deviation of the command's duration in
+	 *         the host, or -1 if there is none
+	 */
+	public synchronized long deviation(final CommandDescriptor descriptor,
+			final Host host) {
+		String deviation = this.durations.getProperty(
+				key(descriptor, host) + ".deviation");
+		return deviation == null ? -1 : Long.parseLong(deviation);
+	}
+
+	/**
+	 * @param descriptor
+	 *            A command descriptor
+	 * @param host
+	 *            A host in which the descriptor is executed
+	 * @return the declared duration of the command, or its recorded
+	 *         duration, or {@link #DEFAULT_DURATION}
+	 */
+	public long estimate(final CommandDescriptor descriptor, final Host host) {
+		if (descriptor.expectedDuration() >= 0)
+			return descriptor.expectedDuration();
+		long recorded = recorded(descriptor, host);
+		return recorded >= 0 ? recorded : DEFAULT_DURATION;
+	}
+
+	/**
+	 * Writes the recorded durations
+	 */
+	public synchronized void save() {
+		OutputStream output = null;
+		try {
+			if (this.file.getParentFile() != null)
+				this.file.getParentFile().mkdirs();
+			output = new FileOutputStream(this.file);
+			this.durations.store(output, "Command durations (milliseconds)");
+		} catch (IOException e) {
+			logger.warn("Could not write the duration history " + this.file, e);
+		} finally {
+			close(output);
+		}
+	}
+
+	private String key(final CommandDescriptor descriptor, final Host host) {
+		return ResultCache.hash(host.toString(), descriptor.toCommandString());
+	}
+
+	private void close(Closeable closeable) {
+		try {
+			if (closeable != null)
+				closeable.close();
+		} catch (IOException e) {
+			logger.error(e);
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.amelia.dsl.lib.util.ShellUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * A non-interactive channel that executes a single command on an SSH
+ * session. The standard output, the standard error and the exit status are
+ * read directly from the channel, therefore there is no need to match the
+ * shell prompt.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ExecChannel {
+
+	/**
+	 * The time to wait between checks of the channel state
+	 */
+	private static final long POLL_INTERVAL = 5;
+
+	/**
+	 * The marker printed in the standard error with the process identifier
+	 * of the remote shell executing the command
+	 */
+	private static final Pattern PID_MARKER = Pattern.compile(
+			"--AMELIA-PID:([0-9]+)--\r?\n");
+
+	private final Session session;
+
+	private final String command;
+
+	private final ByteArrayOutputStream stdout;
+
+	private final ByteArrayOutputStream stderr;
+
+	private int exitStatus;
+
+	private volatile boolean cancelled;
+
+	/**
+	 * The logger
+	 */
+	private final static Logger logger = LogManager.getLogger(ExecChannel.class);
+
+	/**
+	 * @param session
+	 *            The (connected) SSH session
+	 * @param command
+	 *            The command to execute
+	 */
+	public ExecChannel(final Session session, final String command) {
+		this.session = session;
+		this.command = command;
+		this.stdout = new ByteArrayOutputStream();
+		this.stderr = new ByteArrayOutputStream();
+		this.exitStatus = -1;
+	}
+
+	/**
+	 * Executes the command and waits until it finishes.
+	 * 
+	 * @param connectionTimeout
+	 *            The timeout to connect the channel
+	 * @param timeout
+	 *            The time to wait for the command to finish (in milliseconds),
+	 *            or -1 to wait indefinitely
+	 * @return the exit status of the command
+	 * @throws JSchException
+	 *             If the channel cannot be opened
+	 * @throws TimeoutException
+	 *             If the command does not finish within the given timeout.
+	 *             The remote process tree is killed before it is thrown.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the command
+	 * @throws CancellationException
+	 *             If the channel is cancelled before the command finishes
+	 */
+	public int execute(final int connectionTimeout, final long timeout)
+			throws JSchException, TimeoutException, InterruptedException {
+		ChannelExec channel = (ChannelExec) this.session.openChannel("exec");
+		channel.setCommand("echo \"--AM\"\"ELIA-PID:$$--\" >&2; " + this.command);
+		channel.setInputStream(null);
+		channel.setOutputStream(this.stdout, true);
+		channel.setErrStream(this.stderr, true);
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			channel.connect(connectionTimeout);
+			while (!channel.isClosed()) {
+				if (this.cancelled)
+					throw new CancellationException();
+				if (timeout != -1 && System.currentTimeMillis() > deadline) {
+					// Without a terminal, the process outlives the channel
+					kill(connectionTimeout);
+					throw new TimeoutException();
+				}
+				Thread.sleep(POLL_INTERVAL);
+			}
+			this.exitStatus = channel.getExitStatus();
+		} finally {
+			channel.disconnect();
+		}
+		return this.exitStatus;
+	}
+
+	/**
+	 * Kills the process tree of the remote shell, if its PID is known
+	 */
+	private void kill(final int connectionTimeout) throws InterruptedException {
+		int pid = pid();
+		if (pid == -1)
+			return;
+		ExecChannel channel = new ExecChannel(this.session,
+				ShellUtils.killTreeCommand(pid));
+		try {
+			// A connection timeout of 0 means no timeout
+			channel.execute(connectionTimeout,
+					connectionTimeout > 0 ? connectionTimeout : -1);
+		} catch (JSchException e) {
+			logger.error("Could not kill the remote process " + pid, e);
+		} catch (TimeoutException e) {
+			logger.error("Could not kill the remote process " + pid, e);
+		}
+	}
+
+	public String command() {
+		return this.command;
+	}
+
+	/**
+	 * @return the standard output of the command
+	 */
+	public String stdout() {
+		return toString(this.stdout);
+	}
+
+	/**
+	 * @return the standard error of the command
+	 */
+	public String stderr() {
+		return PID_MARKER.matcher(toString(this.stderr)).replaceFirst("");
+	}
+
+	/**
+	 * @return the process identifier of the remote shell executing the
+	 *         command, or -1 if it is not known yet
+	 */
+	public int pid() {
+		Matcher matcher = PID_MARKER.matcher(toString(this.stderr));
+		return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+	}
+
+	/**
+	 * Stops waiting for the command, and closes the channel. The remote
+	 * process is not terminated (see {@link #pid()}).
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	/**
+	 * @return the exit status of the command, or -1 if it has not finished
+	 */
+	public int exitStatus() {
+		return this.exitStatus;
+	}
+
+	private String toString(ByteArrayOutputStream stream) {
+		try {
+			return stream.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return stream.toString();
+		}
+	}
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.amelia.dsl.lib.descriptors.AssetBundle;
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.amelia.dsl.lib.util.ResultCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An append-only file recording the tasks of a {@link DescriptorGraph} that
+ * finished successfully. Each entry contains the host and a fingerprint of
+ * the descriptor, computed from its command (and the contents of the files,
+ * for asset bundles) and the fingerprints of its dependencies. When a deployment is resumed, tasks with an entry in the
+ * journal are not executed again.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ExecutionJournal {
+
+	/**
+	 * Writes the queued entries, synchronizing the file once per batch
+	 */
+	private class Writer extends Thread {
+
+		public Writer(final String subsystem) {
+			super(subsystem + "-journal-writer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<String> batch = new ArrayList<String>();
+			while (true) {
+				// Checked before writing, so that a write error cannot lose it
+				boolean close = false;
+				try {
+					batch.add(queue.take());
+					queue.drainTo(batch);
+					close = batch.remove(CLOSE);
+					StringBuilder sb = new StringBuilder();
+					for (String entry : batch)
+						sb.append(entry).append('\n');
+					ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(UTF8));
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+					channel.force(false);
+				} catch (InterruptedException e) {
+					close = true;
+				} catch (IOException e) {
+					logger.error("Error writing the execution journal", e);
+				} finally {
+					batch.clear();
+				}
+				if (close) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						logger.error("Error closing the execution journal", e);
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Marks the end of the queue
+	 */
+	private static final String CLOSE = new String("close");
+
+	private final FileChannel channel;
+
+	/**
+	 * The entries found when the journal was opened
+	 */
+	private final Set<String> completed;
+
+	private final Map<CommandDescriptor, String> fingerprints;
+
+	private final LinkedBlockingQueue<String> queue;
+
+	private final Writer writer;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(ExecutionJournal.class);
+
+	/**
+	 * @param subsystem
+	 *            The subsystem whose tasks are recorded
+	 * @param file
+	 *            The journal file
+	 * @param resume
+	 *            Whether to read the entries of a previous deployment. If
+	 *            {@code false}, the journal is emptied
+	 * @throws IOException
+	 *             If the file cannot be read or created
+	 */
+	public ExecutionJournal(final String subsystem, final File file,
+			final boolean resume) throws IOException {
+		this.completed = new HashSet<String>();
+		this.fingerprints = Collections.synchronizedMap(
+				new HashMap<CommandDescriptor, String>());
+		this.queue = new LinkedBlockingQueue<String>();
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		if (resume && file.exists())
+			read(file);
+		if (resume)
+			this.channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		else
+			this.channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		this.writer = new Writer(subsystem);
+		this.writer.start();
+	}
+
+	private void read(final File file) throws IOException {
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// Ignore incomplete entries (e.g., the process was killed)
+				if (line.matches("[^\\t]+\\t[0-9a-f]{64}"))
+					this.completed.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param descriptor
+	 *            A descriptor of the graph
+	 * @param host
+	 *            One of the hosts in which the descriptor is executed
+	 * @return whether the descriptor was already executed in the given host
+	 */
+	public boolean isCompleted(final CommandDescriptor descriptor,
+			final Host host) {
+		return this.completed.contains(entry(descriptor, host));
+	}
+
+	/**
+	 * Records the execution of a descriptor in a host. The entry is written
+	 * asynchronously.
+	 */
+	public void record(final CommandDescriptor descriptor, final Host host) {
+		this.queue.add(entry(descriptor, host));
+	}
+
+	/**
+	 * Writes the pending entries and closes the journal
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the entries
+	 *             to be written
+	 */
+	public void close() throws InterruptedException {
+		if (this.writer.isAlive()) {
+			this.queue.add(CLOSE);
+			this.writer.join();
+		}
+	}
+
+	private String entry(final CommandDescriptor descriptor, final Host host) {
+		String _host = host.username() + "@" + host.hostname() + ":"
+				+ host.sshPort();
+		return _host + "\t" + fingerprint(descriptor);
+	}
+
+	/**
+	 * @return a hash of the descriptor's command, the contents of its files
+	 *         (if it is an asset bundle) and the fingerprints of its
+	 *         dependencies
+	 */
+	public String fingerprint(final CommandDescriptor descriptor) {
+		String fingerprint = this.fingerprints.get(descriptor);
+		if (fingerprint == null) {
+			List<String> dependencies = new ArrayList<String>();
+			for (CommandDescriptor dependency : descriptor.dependencies())
+				dependencies.add(fingerprint(dependency));
+			Collections.sort(dependencies);
+			StringBuilder sb = new StringBuilder(descriptor.toCommandString());
+			if (descriptor instanceof AssetBundle)
+				sb.append('\n').append(contents((AssetBundle) descriptor));
+			for (String dependency : dependencies)
+				sb.append('\n').append(dependency);
+			fingerprint = sha256(sb.toString());
+			this.fingerprints.put(descriptor, fingerprint);
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * @return a fingerprint of the local files of the given bundle, or a
+	 *         random value if they cannot be read (so that the bundle is
+	 *         uploaded again)
+	 */
+	private static String contents(final AssetBundle bundle) {
+		TreeMap<String, File> files = new TreeMap<String, File>();
+		for (String path : bundle.transfers().keySet())
+			collect(new File(path), files);
+		try {
+			return ResultCache.fingerprint(files.values().toArray(new File[0]));
+		} catch (IOException e) {
+			logger.warn("Could not read the files of " + bundle, e);
+			return UUID.randomUUID().toString();
+		}
+	}
+
+	private static void collect(final File file, final Map<String, File> files) {
+		File[] children = file.listFiles();
+		if (children == null)
+			files.put(file.getPath(), file);
+		else
+			for (File child : children)
+				collect(child, files);
+	}
+
+	private static String sha256(final String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(text.getBytes(UTF8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : hash)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
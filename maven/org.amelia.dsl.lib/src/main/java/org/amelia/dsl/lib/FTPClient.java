@@ -18,11 +18,17 @@
  */
 package org.amelia.dsl.lib;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
 
+import org.amelia.dsl.lib.util.Manifest;
+import org.amelia.dsl.lib.util.SharedFiles;
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPFile;
 
@@ -189,13 +195,189 @@ public class FTPClient extends org.apache.commons.net.ftp.FTPClient {
 			uploadFile(localPath, remotePath);
 	}
 
-	private void uploadFile(String localPath, String remotePath)
+	/**
+	 * Prepares the remote location of a file or directory as
+	 * {@link #upload(String, String, boolean)} does, but instead of uploading
+	 * the files, it collects them.
+	 * 
+	 * @param localPath
+	 *            The pathname of the local file/directory to upload
+	 * @param remotePath
+	 *            The destination pathname of the remote file/directory
+	 * @param overwrite
+	 *            If the remote path is an existing directory, it will be
+	 *            overwritten if {@code overwrite} is {@code true}
+	 * @param files
+	 *            The list in which the local and remote pathnames of the
+	 *            files to upload are collected
+	 * @throws IOException
+	 *             If an I/O error occurs while either sending a command to the
+	 *             server or receiving a reply from the server
+	 */
+	public void prepareUpload(String localPath, String remotePath,
+			boolean overwrite, List<String[]> files) throws IOException {
+
+		File file = new File(localPath);
+		boolean isDir = file.isDirectory();
+
+		if (isDir && overwrite && directoryExists(remotePath))
+			removeDirectoryWithContents(remotePath);
+
+		makeDirectories(isDir ? remotePath : getPathParent(remotePath));
+
+		if (isDir)
+			collectDirectory(localPath, remotePath, files);
+		else
+			files.add(new String[] { localPath, remotePath });
+	}
+
+	/**
+	 * Prepares the synchronisation of a remote directory with a local one.
+	 * The manifest of the local directory is compared with the one stored in
+	 * the remote directory, and only files that are missing or differ are
+	 * collected. If the directory is overwritten, remote files that no longer
+	 * exist locally are collected as stale; otherwise, they are kept. If the
+	 * remote directory has no manifest, it is prepared as in
+	 * {@link #prepareUpload(String, String, boolean, List)}.
+	 * 
+	 * @param localPath
+	 *            The pathname of the local directory
+	 * @param remotePath
+	 *            The destination pathname of the remote directory
+	 * @param overwrite
+	 *            Whether the remote directory is overwritten: stale files are
+	 *            deleted or, if it has no manifest, the whole directory is
+	 *            replaced
+	 * @param files
+	 *            The list in which the local and remote pathnames of the
+	 *            files to upload are collected
+	 * @param stale
+	 *            The list in which the remote pathnames of the files to
+	 *            delete are collected
+	 * @return the manifest to store in the remote directory once the files
+	 *         are uploaded (see {@link #storeManifest(String, Manifest)})
+	 * @throws IOException
+	 *             If an I/O error occurs while either sending a command to the
+	 *             server or receiving a reply from the server
+	 */
+	public Manifest prepareSync(String localPath, String remotePath,
+			boolean overwrite, List<String[]> files, List<String> stale)
+			throws IOException {
+
+		String separator = remoteFileSeparator();
+		Manifest manifest = Manifest.of(new File(localPath));
+		Manifest remote = retrieveManifest(remotePath);
+
+		if (remote == null) {
+			prepareUpload(localPath, remotePath, overwrite, files);
+			return manifest;
+		}
+
+		List<String> changed = manifest.changed(remote);
+		List<String> _stale = overwrite ? manifest.stale(remote)
+				: Collections.<String>emptyList();
+
+		// Until the new manifest is stored, the remote contents are unknown
+		if (!changed.isEmpty() || !_stale.isEmpty())
+			super.deleteFile(remotePath + separator + Manifest.FILE_NAME);
+
+		for (String directory : Manifest.directories(changed))
+			makeDirectories(remotePath + separator
+					+ directory.replace("/", separator));
+		for (String path : changed)
+			files.add(new String[] {
+					localPath + File.separator
+							+ path.replace('/', File.separatorChar),
+					remotePath + separator + path.replace("/", separator) });
+		for (String path : _stale)
+			stale.add(remotePath + separator + path.replace("/", separator));
+
+		return manifest;
+	}
+
+	/**
+	 * @param remotePath
+	 *            The pathname of a remote directory
+	 * @return the manifest stored in the remote directory, or {@code null} if
+	 *         there is no (valid) manifest
+	 * @throws IOException
+	 *             If an I/O error occurs while either sending a command to the
+	 *             server or receiving a reply from the server
+	 */
+	public Manifest retrieveManifest(String remotePath) throws IOException {
+
+		setFileType(FTP.BINARY_FILE_TYPE);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!super.retrieveFile(remotePath + remoteFileSeparator()
+				+ Manifest.FILE_NAME, out))
+			return null;
+
+		try {
+			return Manifest.parse(out.toString("UTF-8"));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the given manifest in a remote directory
+	 * 
+	 * @param remotePath
+	 *            The pathname of the remote directory
+	 * @param manifest
+	 *            The manifest of its contents
+	 * @throws IOException
+	 *             If the manifest cannot be uploaded
+	 */
+	public void storeManifest(String remotePath, Manifest manifest)
+			throws IOException {
+
+		setFileType(FTP.BINARY_FILE_TYPE);
+
+		String pathname = remotePath + remoteFileSeparator() + Manifest.FILE_NAME;
+		if (!super.storeFile(pathname, new ByteArrayInputStream(manifest.toBytes())))
+			throw new IOException("Unable to upload manifest " + pathname
+					+ ". Error is: " + getReplyString());
+	}
+
+	private void collectDirectory(String localPath, String remotePath,
+			List<String[]> files) throws IOException {
+
+		String separator = remoteFileSeparator();
+		File[] subFiles = new File(localPath).listFiles();
+		remotePath = remotePath.isEmpty() ? "" : remotePath + separator;
+
+		if (subFiles != null) {
+			for (File file : subFiles) {
+				String localFilePath = file.getAbsolutePath();
+				String remoteFilePath = remotePath + file.getName();
+
+				if (file.isFile()) {
+					files.add(new String[] { localFilePath, remoteFilePath });
+				} else {
+					if (!super.makeDirectory(remoteFilePath)) {
+						String existing = directoryExists(remoteFilePath) ? "existing "
+								: "";
+						throw new IOException("Unable to create the "
+								+ existing + "remote directory "
+								+ remoteFilePath);
+					}
+					collectDirectory(localFilePath, remoteFilePath, files);
+				}
+			}
+		}
+	}
+
+	void uploadFile(String localPath, String remotePath)
 			throws IOException {
 
 		setFileType(FTP.BINARY_FILE_TYPE);
 
 		File localFile = new File(localPath);
-		InputStream stream = new FileInputStream(localFile);
+		InputStream stream = SharedFiles.isEnabled()
+				? SharedFiles.getInstance().open(localFile)
+				: new FileInputStream(localFile);
 		if (!super.storeFile(remotePath, stream))
 			throw new IOException("Unable to upload local file " + localPath
 					+ ". Error is: " + getReplyString());
@@ -18,26 +18,74 @@
  */
 package org.amelia.dsl.lib;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.amelia.dsl.lib.descriptors.AssetBundle;
 import org.amelia.dsl.lib.descriptors.Host;
+import org.amelia.dsl.lib.util.Log;
+import org.amelia.dsl.lib.util.Manifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
+ * Transfers files to a host over FTP. Bundles are uploaded using up to
+ * {@code amelia.ftp_sessions} sessions: remote directories are created first
+ * using a single session, and then the files are taken from a shared queue
+ * by all sessions.
+ * <p>
+ * If {@code amelia.sync_uploads} is enabled, directories are synchronised
+ * using the manifest stored in the remote directory (see {@link Manifest}):
+ * only files that differ are uploaded, and stale files of overwritten bundles
+ * are deleted without listing the remote tree.
+ * 
  * @author Miguel Jiménez - Initial contribution and API
  */
 public class FTPHandler extends Thread {
 
 	private final Host host;
 
+	/**
+	 * The first session, opened when the handler is set up
+	 */
 	private final FTPClient client;
-	
+
+	/**
+	 * The maximum number of sessions to open with the host
+	 */
+	private final int maxSessions;
+
+	private final List<FTPClient> sessions;
+
+	private final LinkedList<FTPClient> idleSessions;
+
+	/**
+	 * The logger
+	 */
+	private final static Logger logger = LogManager.getLogger(FTPHandler.class);
+
 	public FTPHandler(final Host host) {
 		this.host = host;
 		this.client = new FTPClient();
+		this.maxSessions = Math.max(1,
+				Integer.parseInt(System.getProperty("amelia.ftp_sessions", "1")));
+		this.sessions = new ArrayList<FTPClient>();
+		this.idleSessions = new LinkedList<FTPClient>();
+		this.sessions.add(this.client);
+		this.idleSessions.add(this.client);
 	}
 	
 	public void setup() throws SocketException, IOException {
@@ -45,8 +93,19 @@ public class FTPHandler extends Thread {
 	}
 
 	private void connect() throws SocketException, IOException {
-		this.client.connect(this.host.hostname(), this.host.ftpPort());
-		this.client.login(this.host.username(), this.host.password());
+		connect(this.client);
+	}
+
+	private void connect(final FTPClient client)
+			throws SocketException, IOException {
+		client.connect(this.host.hostname(), this.host.ftpPort());
+		// e.g., 421 when there are too many connections from this address
+		if (!client.login(this.host.username(), this.host.password())) {
+			String reply = client.getReplyString();
+			client.disconnect();
+			throw new IOException("Unable to log in to the FTP server of "
+					+ this.host + ". Error is: " + reply);
+		}
 	}
 
 	public FTPClient client() {
@@ -54,18 +113,199 @@ public class FTPHandler extends Thread {
 	}
 
 	public boolean close() throws IOException {
+		synchronized (this.sessions) {
+			for (FTPClient session : this.sessions) {
+				if (session != this.client && session.isConnected())
+					session.logout();
+			}
+		}
 		if(this.client != null && this.client.isConnected())
 			return this.client.logout();
 		else
 			return false;
 	}
 
-	public synchronized void upload(AssetBundle bundle) throws IOException {
-		for (Map.Entry<String, List<String>> pair : bundle.transfers()
-				.entrySet()) {
-			for (String remote : pair.getValue()) {
-				this.client.upload(pair.getKey(), remote, bundle.overwrite());
+	public void upload(AssetBundle bundle) throws Exception {
+		boolean sync = Manifest.isEnabled();
+		if (this.maxSessions == 1 && !sync) {
+			synchronized (this.client) {
+				for (Map.Entry<String, List<String>> pair : bundle.transfers()
+						.entrySet()) {
+					for (String remote : pair.getValue()) {
+						this.client.upload(pair.getKey(), remote, bundle.overwrite());
+					}
+				}
+			}
+			return;
+		}
+		long start = System.currentTimeMillis();
+		// Create the remote directories, and collect the files to upload
+		List<String[]> files = new ArrayList<String[]>();
+		List<String> stale = new ArrayList<String>();
+		Map<String, Manifest> manifests = new LinkedHashMap<String, Manifest>();
+		FTPClient session = leaseSession();
+		try {
+			for (Map.Entry<String, List<String>> pair : bundle.transfers()
+					.entrySet()) {
+				boolean isDir = new File(pair.getKey()).isDirectory();
+				for (String remote : pair.getValue()) {
+					if (sync && isDir)
+						manifests.put(remote, session.prepareSync(pair.getKey(),
+								remote, bundle.overwrite(), files, stale));
+					else
+						session.prepareUpload(pair.getKey(), remote,
+								bundle.overwrite(), files);
+				}
+			}
+		} catch (Exception e) {
+			discardSession(session);
+			throw e;
+		}
+		releaseSession(session);
+		// Upload the files
+		final ConcurrentLinkedQueue<String[]> queue = new ConcurrentLinkedQueue<String[]>(files);
+		final AtomicLong bytes = new AtomicLong();
+		int workers = Math.min(this.maxSessions, files.size());
+		List<Callable<Object>> uploads = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < workers; i++) {
+			uploads.add(new Callable<Object>() {
+				@Override public Object call() throws Exception {
+					FTPClient session;
+					try {
+						session = leaseSession();
+					} catch (IOException e) {
+						// e.g., too many connections: other sessions upload the files
+						logger.warn("Could not open an FTP session with "
+								+ host + ": " + e.getMessage());
+						return null;
+					}
+					try {
+						String[] file;
+						while ((file = queue.poll()) != null) {
+							session.uploadFile(file[0], file[1]);
+							bytes.addAndGet(new File(file[0]).length());
+						}
+					} catch (Exception e) {
+						// Stop the other sessions
+						queue.clear();
+						discardSession(session);
+						throw e;
+					}
+					releaseSession(session);
+					return null;
+				}
+			});
+		}
+		if (!uploads.isEmpty()) {
+			ExecutorService executor = Executors.newFixedThreadPool(workers);
+			try {
+				for (Future<Object> future : executor.invokeAll(uploads)) {
+					try {
+						future.get();
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof Exception)
+							throw (Exception) e.getCause();
+						throw e;
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+			if (!queue.isEmpty())
+				throw new IOException("Unable to open an FTP session with "
+						+ this.host + " to upload " + queue.size() + " files");
+		}
+		if (!manifests.isEmpty())
+			completeSync(stale, manifests);
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		String message = String.format(
+				"Uploaded %d file%s (%.1f KB) in %d ms (%.1f KB/s, %d sessions)",
+				files.size(), files.size() == 1 ? "" : "s", bytes.get() / 1024.0,
+				time, bytes.get() / 1024.0 / (time / 1000.0), workers);
+		logger.info(message + " to " + this.host);
+		Log.info(this.host, message);
+	}
+
+	/**
+	 * Deletes the stale files, and stores the manifests of the synchronised
+	 * directories. FTP cannot delete several files in one command, but no
+	 * remote listing is needed.
+	 */
+	private void completeSync(final List<String> stale,
+			final Map<String, Manifest> manifests) throws Exception {
+		FTPClient session = leaseSession();
+		try {
+			for (String pathname : stale) {
+				if (!session.deleteFile(pathname))
+					logger.warn("Unable to delete stale file " + pathname
+							+ " in " + this.host + ". Error is: "
+							+ session.getReplyString());
 			}
+			for (Map.Entry<String, Manifest> entry : manifests.entrySet())
+				session.storeManifest(entry.getKey(), entry.getValue());
+		} catch (Exception e) {
+			discardSession(session);
+			throw e;
+		}
+		releaseSession(session);
+		if (!stale.isEmpty()) {
+			String message = String.format("Deleted %d stale file%s",
+					stale.size(), stale.size() == 1 ? "" : "s");
+			logger.info(message + " in " + this.host);
+		}
+	}
+
+	/**
+	 * Leases a session, opening a new one if all of them are in use and the
+	 * maximum number of sessions has not been reached.
+	 */
+	private FTPClient leaseSession() throws IOException, InterruptedException {
+		synchronized (this.sessions) {
+			while (this.idleSessions.isEmpty()
+					&& this.sessions.size() >= this.maxSessions)
+				this.sessions.wait();
+			if (!this.idleSessions.isEmpty())
+				return this.idleSessions.removeFirst();
+			// Reserve a place for the new session
+			this.sessions.add(null);
+		}
+		FTPClient session = new FTPClient();
+		boolean connected = false;
+		try {
+			connect(session);
+			connected = true;
+			return session;
+		} finally {
+			synchronized (this.sessions) {
+				this.sessions.remove(null);
+				if (connected)
+					this.sessions.add(session);
+				this.sessions.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Closes a session whose state is unknown (e.g., after an error), and
+	 * removes it from the pool
+	 */
+	private void discardSession(final FTPClient session) {
+		try {
+			if (session.isConnected())
+				session.disconnect();
+		} catch (IOException e) {
+			logger.warn("Error closing an FTP session with " + this.host, e);
+		}
+		synchronized (this.sessions) {
+			this.sessions.remove(session);
+			this.sessions.notifyAll();
+		}
+	}
+
+	private void releaseSession(final FTPClient session) {
+		synchronized (this.sessions) {
+			this.idleSessions.add(session);
+			this.sessions.notifyAll();
 		}
 	}
 	
@@ -0,0 +1,46 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+
+/**
+ * A check deciding whether a component started by an execution descriptor is
+ * ready to be used by the descriptors depending on it. Probes are polled
+ * until they succeed or a deadline expires.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public interface ReadinessProbe {
+
+	/**
+	 * @param host
+	 *            The host in which the descriptor was executed
+	 * @param descriptor
+	 *            The execution descriptor
+	 * @return whether the component is ready
+	 * @throws Exception
+	 *             If the probe cannot be evaluated (the probe is considered
+	 *             not ready)
+	 */
+	public boolean isReady(Host host, CommandDescriptor descriptor)
+			throws Exception;
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.util.Threads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Executes the tasks of a {@link DescriptorGraph} using a fixed number of
+ * worker threads. The number of unmet dependencies of each task is computed
+ * once; when a task finishes, its successors are updated and those without
+ * pending dependencies are pushed onto the ready queue. This way, the number
+ * of threads does not depend on the size of the graph. Optionally, ready
+ * tasks on the longest remaining paths are executed first.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ReadyQueueExecutor {
+
+	private class Node implements Runnable {
+
+		private final CommandDescriptor descriptor;
+		private final ScheduledTask<?> task;
+		private final AtomicInteger pendingDependencies;
+		/**
+		 * The tasks waiting for this one to finish. Assigned before
+		 * executing the graph.
+		 */
+		private Node[] successors;
+
+		/**
+		 * The estimated duration of the longest path starting at this task
+		 */
+		private long priority;
+
+		/**
+		 * The order in which this task became ready
+		 */
+		private long sequence;
+
+		public Node(final CommandDescriptor descriptor,
+				final ScheduledTask<?> task, final int dependencies) {
+			this.descriptor = descriptor;
+			this.task = task;
+			this.pendingDependencies = new AtomicInteger(dependencies);
+			this.successors = new Node[0];
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!shutdown) {
+					SSHHandler handler = this.task.host().ssh();
+					graph.executeTask(this.descriptor, handler, this.task);
+					this.descriptor.done(handler.host());
+					for (Node successor : this.successors) {
+						if (successor.pendingDependencies.decrementAndGet() == 0)
+							submit(successor);
+					}
+				}
+			} catch (Exception e) {
+				logger.error(e);
+				throw new RuntimeException(e.getMessage(), e.getCause());
+			} finally {
+				doneSignal.countDown();
+			}
+		}
+	}
+
+	/**
+	 * The graph whose tasks are executed
+	 */
+	private final DescriptorGraph graph;
+
+	/**
+	 * The worker threads, fed by the ready queue
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Tasks without dependencies
+	 */
+	private final List<Node> roots;
+
+	/**
+	 * Signal counting the tasks that have not finished yet
+	 */
+	private final CountDownLatch doneSignal;
+
+	private volatile boolean shutdown;
+
+	/**
+	 * The number of tasks submitted so far
+	 */
+	private final AtomicLong submitted;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(ReadyQueueExecutor.class);
+
+	/**
+	 * @param graph
+	 *            The graph containing the descriptors and their dependencies
+	 * @param tasks
+	 *            The tasks associated with each descriptor (one per host)
+	 * @param workers
+	 *            The maximum number of tasks executed concurrently
+	 */
+	public ReadyQueueExecutor(final DescriptorGraph graph,
+			final Map<CommandDescriptor, List<ScheduledTask<?>>> tasks,
+			final int workers) {
+		this(graph, tasks, workers, false);
+	}
+
+	/**
+	 * @param graph
+	 *            The graph containing the descriptors and their dependencies
+	 * @param tasks
+	 *            The tasks associated with each descriptor (one per host)
+	 * @param workers
+	 *            The maximum number of tasks executed concurrently
+	 * @param criticalPathFirst
+	 *            Whether ready tasks are executed in decreasing order of the
+	 *            estimated duration of the longest path starting at them,
+	 *            rather than in the order they became ready
+	 */
+	public ReadyQueueExecutor(final DescriptorGraph graph,
+			final Map<CommandDescriptor, List<ScheduledTask<?>>> tasks,
+			final int workers, final boolean criticalPathFirst) {
+		this.graph = graph;
+		this.submitted = new AtomicLong(0);
+		this.roots = new ArrayList<Node>();
+		this.shutdown = false;
+		Map<ScheduledTask<?>, Node> nodes = new HashMap<ScheduledTask<?>, Node>();
+		for (CommandDescriptor descriptor : graph.keySet()) {
+			for (ScheduledTask<?> task : tasks.get(descriptor)) {
+				int dependencies = graph.countDependencyTasks(descriptor, task.host());
+				Node node = new Node(descriptor, task, dependencies);
+				if (dependencies == 0)
+					this.roots.add(node);
+				nodes.put(task, node);
+			}
+		}
+		// Link the tasks of each dependency to the tasks depending on them
+		Map<ScheduledTask<?>, List<ScheduledTask<?>>> successors = graph.successorTasks();
+		for (ScheduledTask<?> task : nodes.keySet()) {
+			List<ScheduledTask<?>> _successors = successors.get(task);
+			Node[] array = new Node[_successors.size()];
+			for (int i = 0; i < array.length; i++)
+				array[i] = nodes.get(_successors.get(i));
+			nodes.get(task).successors = array;
+		}
+		int total = nodes.size();
+		if (criticalPathFirst)
+			computePriorities(nodes.values(), graph.history());
+		BlockingQueue<Runnable> queue = criticalPathFirst
+				? new PriorityBlockingQueue<Runnable>(Math.max(1, total), new Comparator<Runnable>() {
+					@Override public int compare(Runnable r1, Runnable r2) {
+						Node n1 = (Node) r1, n2 = (Node) r2;
+						if (n1.priority != n2.priority)
+							return n1.priority > n2.priority ? -1 : 1;
+						return Long.compare(n1.sequence, n2.sequence);
+					}
+				})
+				: new LinkedBlockingQueue<Runnable>();
+		this.doneSignal = new CountDownLatch(total);
+		this.executor = new ThreadPoolExecutor(workers, workers, 0L,
+				TimeUnit.MILLISECONDS, queue,
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, graph.subsystem()
+								+ "-worker-" + count.incrementAndGet());
+						thread.setUncaughtExceptionHandler(
+								Threads.exceptionHandler());
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Executes all tasks and waits until they are done, or until this
+	 * executor is shut down.
+	 * 
+	 * @throws InterruptedException
+	 *             If the current thread is interrupted while waiting
+	 */
+	public void execute() throws InterruptedException {
+		for (Node node : this.roots)
+			submit(node);
+		this.doneSignal.await();
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Computes the priority of each task, that is, its estimated duration
+	 * plus the maximum priority among its successors. Tasks are visited in
+	 * reverse topological order.
+	 */
+	private void computePriorities(final Collection<Node> nodes,
+			final DurationHistory history) {
+		Map<Node, Integer> pending = new HashMap<Node, Integer>();
+		for (Node node : nodes)
+			pending.put(node, node.pendingDependencies.get());
+		List<Node> order = new ArrayList<Node>(nodes.size());
+		LinkedList<Node> ready = new LinkedList<Node>(this.roots);
+		while (!ready.isEmpty()) {
+			Node node = ready.removeFirst();
+			order.add(node);
+			for (Node successor : node.successors) {
+				int n = pending.get(successor) - 1;
+				pending.put(successor, n);
+				if (n == 0)
+					ready.add(successor);
+			}
+		}
+		for (int i = order.size() - 1; i >= 0; i--) {
+			Node node = order.get(i);
+			long max = 0;
+			for (Node successor : node.successors)
+				max = Math.max(max, successor.priority);
+			node.priority = max + history.estimate(node.descriptor, node.task.host());
+		}
+	}
+
+	private void submit(Node node) {
+		node.sequence = this.submitted.getAndIncrement();
+		try {
+			if (this.shutdown)
+				this.doneSignal.countDown();
+			else
+				this.executor.execute(node);
+		} catch (RejectedExecutionException e) {
+			// The executor was shut down in the meantime
+			this.doneSignal.countDown();
+		}
+	}
+
+	/**
+	 * Stops scheduling tasks, and waits for the ones in execution to finish.
+	 * 
+	 * @throws InterruptedException
+	 *             If the current thread is interrupted while waiting
+	 */
+	public void shutdown() throws InterruptedException {
+		this.shutdown = true;
+		this.executor.shutdown();
+		while (this.doneSignal.getCount() > 0)
+			this.doneSignal.countDown();
+		this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.amelia.dsl.lib.descriptors.AssetBundle;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.amelia.dsl.lib.util.Manifest;
+import org.amelia.dsl.lib.util.SharedFiles;
+import org.amelia.dsl.lib.util.ShellUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Transfers files over SFTP channels opened on the SSH session of a host.
+ * Unlike {@link FTPHandler}, it requires neither an FTP server nor a second
+ * login. The files of a bundle are uploaded in parallel, using up to
+ * {@code amelia.sftp_channels} channels.
+ * <p>
+ * If {@code amelia.sync_uploads} is enabled, directories are synchronised
+ * using the manifest stored in the remote directory (see {@link Manifest}),
+ * and stale files of overwritten bundles are deleted with a single remote
+ * command. If
+ * {@code amelia.directory_transfer} is {@code archive}, directories are
+ * uploaded as a single compressed stream (see {@link ArchiveTransfer}).
+ * <p>
+ * Directories that are not overwritten are merged with the existing remote
+ * ones, whether they are uploaded file by file or as archives.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SFTPHandler {
+
+	private final Host host;
+
+	private final Session session;
+
+	private final int connectionTimeout;
+
+	/**
+	 * The maximum number of SFTP channels to open on the session
+	 */
+	private final int maxChannels;
+
+	private final List<ChannelSftp> channels;
+
+	private final LinkedList<ChannelSftp> idleChannels;
+
+	/**
+	 * The directories being uploaded as archives
+	 */
+	private final Set<ArchiveTransfer> activeTransfers;
+
+	/**
+	 * The logger
+	 */
+	private final static Logger logger = LogManager.getLogger(SFTPHandler.class);
+
+	/**
+	 * @param host
+	 *            The host to which files are transferred
+	 * @param session
+	 *            The (connected) SSH session of the host
+	 * @param connectionTimeout
+	 *            The timeout to connect the channels
+	 */
+	public SFTPHandler(final Host host, final Session session,
+			final int connectionTimeout) {
+		this.host = host;
+		this.session = session;
+		this.connectionTimeout = connectionTimeout;
+		this.maxChannels = Math.max(1,
+				Integer.parseInt(System.getProperty("amelia.sftp_channels")));
+		this.channels = new ArrayList<ChannelSftp>();
+		this.idleChannels = new LinkedList<ChannelSftp>();
+		this.activeTransfers = Collections.newSetFromMap(
+				new ConcurrentHashMap<ArchiveTransfer, Boolean>());
+	}
+
+	/**
+	 * Uploads the files of the given bundle. Remote directories are prepared
+	 * first, as in {@link FTPClient#upload(String, String, boolean)}; then,
+	 * files are uploaded in parallel.
+	 * 
+	 * @param bundle
+	 *            The files to upload
+	 * @throws Exception
+	 *             If any of the files cannot be uploaded
+	 */
+	public void upload(final AssetBundle bundle) throws Exception {
+		final List<String[]> files = new ArrayList<String[]>();
+		List<String[]> archives = new ArrayList<String[]>();
+		List<String> stale = new ArrayList<String>();
+		Map<String, Manifest> manifests = new LinkedHashMap<String, Manifest>();
+		ChannelSftp channel = leaseChannel();
+		try {
+			for (Map.Entry<String, List<String>> pair : bundle.transfers()
+					.entrySet()) {
+				File local = new File(pair.getKey());
+				for (String remote : pair.getValue()) {
+					if (Manifest.isEnabled() && local.isDirectory())
+						manifests.put(remote, sync(channel, local, remote,
+								bundle.overwrite(), files, archives, stale));
+					else
+						prepare(channel, local, remote, bundle.overwrite(),
+								files, archives);
+				}
+			}
+		} finally {
+			releaseChannel(channel);
+		}
+		if (files.size() == 1 && archives.isEmpty()) {
+			put(files.get(0)[0], files.get(0)[1]);
+		} else if (!files.isEmpty() || !archives.isEmpty()) {
+			putAll(files, archives, bundle.overwrite());
+		}
+		if (!manifests.isEmpty())
+			completeSync(stale, manifests);
+	}
+
+	private void putAll(final List<String[]> files,
+			final List<String[]> archives, final boolean overwrite)
+			throws Exception {
+		List<Callable<Object>> uploads = new ArrayList<Callable<Object>>();
+		for (final String[] archive : archives) {
+			uploads.add(new Callable<Object>() {
+				@Override public Object call() throws Exception {
+					ArchiveTransfer transfer = new ArchiveTransfer(host, session,
+							connectionTimeout);
+					activeTransfers.add(transfer);
+					try {
+						transfer.upload(new File(archive[0]), archive[1], overwrite);
+					} finally {
+						activeTransfers.remove(transfer);
+					}
+					return null;
+				}
+			});
+		}
+		for (final String[] file : files) {
+			uploads.add(new Callable<Object>() {
+				@Override public Object call() throws Exception {
+					put(file[0], file[1]);
+					return null;
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(this.maxChannels, uploads.size())));
+		try {
+			for (Future<Object> future : executor.invokeAll(uploads)) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception)
+						throw (Exception) e.getCause();
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Prepares the remote location of the given file, and collects the files
+	 * to upload (one file, or the contents of a directory). Directories are
+	 * collected as archives instead if {@link ArchiveTransfer} is enabled.
+	 */
+	private void prepare(final ChannelSftp channel, final File local,
+			final String remote, final boolean overwrite,
+			final List<String[]> files, final List<String[]> archives)
+			throws SftpException, IOException {
+		boolean isDir = local.isDirectory();
+		if (isDir && ArchiveTransfer.isEnabled()) {
+			// The remote directory is prepared by the extraction command
+			archives.add(new String[] { local.getPath(), remote });
+			return;
+		}
+		if (isDir && overwrite && isDirectory(channel, remote))
+			removeDirectory(channel, remote);
+		makeDirectories(channel, isDir ? remote : parent(remote));
+		if (isDir)
+			collect(channel, local, remote, files);
+		else
+			files.add(new String[] { local.getPath(), remote });
+	}
+
+	/**
+	 * Compares the manifest of the given directory with the one stored in the
+	 * remote directory, and collects the files that are missing or differ, as
+	 * well as the (absolute) paths of stale files. Stale files are only
+	 * collected if the directory is overwritten; otherwise, they are kept. If
+	 * the remote directory has no manifest, it is prepared as in
+	 * {@link #prepare(ChannelSftp, File, String, boolean, List, List)}.
+	 * 
+	 * @return the manifest to store once the files are uploaded
+	 */
+	private Manifest sync(final ChannelSftp channel, final File local,
+			final String remote, final boolean overwrite,
+			final List<String[]> files, final List<String[]> archives,
+			final List<String> stale) throws SftpException, IOException {
+		Manifest manifest = Manifest.of(local);
+		Manifest _remote = retrieveManifest(channel, remote);
+		if (_remote == null) {
+			prepare(channel, local, remote, overwrite, files, archives);
+			return manifest;
+		}
+		List<String> changed = manifest.changed(_remote);
+		List<String> _stale = overwrite ? manifest.stale(_remote)
+				: Collections.<String>emptyList();
+		if (changed.isEmpty() && _stale.isEmpty()) {
+			logger.info(remote + " is up to date in " + this.host);
+			return manifest;
+		}
+		// Until the new manifest is stored, the remote contents are unknown
+		channel.rm(remote + "/" + Manifest.FILE_NAME);
+		for (String directory : Manifest.directories(changed))
+			makeDirectories(channel, remote + "/" + directory);
+		for (String path : changed)
+			files.add(new String[] {
+					new File(local, path.replace('/', File.separatorChar)).getPath(),
+					remote + "/" + path });
+		String base = channel.realpath(remote);
+		for (String path : _stale)
+			stale.add(base + "/" + path);
+		logger.info(String.format("%d of %d files changed in %s in %s",
+				changed.size(), manifest.size(), remote, this.host));
+		return manifest;
+	}
+
+	/**
+	 * @return the manifest stored in the given remote directory, or
+	 *         {@code null} if there is no (valid) manifest
+	 */
+	private Manifest retrieveManifest(final ChannelSftp channel,
+			final String remote) throws SftpException, IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			channel.get(remote + "/" + Manifest.FILE_NAME, out);
+		} catch (SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+				return null;
+			throw e;
+		}
+		try {
+			return Manifest.parse(out.toString("UTF-8"));
+		} catch (IllegalArgumentException e) {
+			logger.warn("Invalid manifest in " + remote + " in " + this.host, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the stale files using a single command, and stores the
+	 * manifests of the synchronised directories.
+	 */
+	private void completeSync(final List<String> stale,
+			final Map<String, Manifest> manifests) throws Exception {
+		ChannelSftp channel = leaseChannel();
+		try {
+			if (!stale.isEmpty()) {
+				StringBuilder command = new StringBuilder("rm -f --");
+				for (String path : stale)
+					command.append(' ').append(ShellUtils.quote(path));
+				ExecChannel exec = this.host.ssh().exec(command.toString(), -1);
+				if (exec.exitStatus() != 0)
+					throw new IOException("Unable to delete stale files in "
+							+ this.host + ". Error is: " + exec.stderr());
+				logger.info(String.format("Deleted %d stale file%s in %s",
+						stale.size(), stale.size() == 1 ? "" : "s", this.host));
+			}
+			for (Map.Entry<String, Manifest> entry : manifests.entrySet()) {
+				channel.put(new ByteArrayInputStream(entry.getValue().toBytes()),
+						entry.getKey() + "/" + Manifest.FILE_NAME,
+						ChannelSftp.OVERWRITE);
+			}
+		} finally {
+			releaseChannel(channel);
+		}
+	}
+
+	private void collect(final ChannelSftp channel, final File directory,
+			final String remote, final List<String[]> files)
+			throws SftpException {
+		File[] children = directory.listFiles();
+		if (children == null)
+			return;
+		String prefix = remote.isEmpty() ? "" : remote + "/";
+		for (File child : children) {
+			String _remote = prefix + child.getName();
+			if (child.isDirectory()) {
+				if (!isDirectory(channel, _remote))
+					channel.mkdir(_remote);
+				collect(channel, child, _remote, files);
+			} else {
+				files.add(new String[] { child.getPath(), _remote });
+			}
+		}
+	}
+
+	private void put(final String local, final String remote)
+			throws JSchException, InterruptedException, IOException {
+		ChannelSftp channel = leaseChannel();
+		try {
+			if (DeltaTransfer.isEnabled() && delta(channel, local, remote))
+				return;
+			if (SharedFiles.isEnabled()) {
+				InputStream stream = SharedFiles.getInstance().open(new File(local));
+				try {
+					channel.put(stream, remote, ChannelSftp.OVERWRITE);
+				} finally {
+					stream.close();
+				}
+			} else {
+				channel.put(local, remote, ChannelSftp.OVERWRITE);
+			}
+		} catch (SftpException e) {
+			throw new IOException("Unable to upload local file " + local
+					+ " to " + this.host + ". Error is: " + e.getMessage(), e);
+		} finally {
+			releaseChannel(channel);
+		}
+	}
+
+	/**
+	 * Updates the remote file sending only the blocks that changed
+	 * 
+	 * @return whether the file was updated
+	 */
+	private boolean delta(final ChannelSftp channel, final String local,
+			final String remote) {
+		int blockSize = Integer.parseInt(
+				System.getProperty("amelia.delta_block_size"));
+		try {
+			return new DeltaTransfer(this.host.ssh(), blockSize)
+				.upload(channel, new File(local), remote);
+		} catch (Exception e) {
+			logger.warn("Delta transfer of " + local + " to " + this.host
+					+ " failed; uploading the whole file", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Creates the given directory and its missing parents
+	 */
+	private void makeDirectories(final ChannelSftp channel, final String path)
+			throws SftpException, IOException {
+		if (path.isEmpty() || path.equals("/") || isDirectory(channel, path))
+			return;
+		makeDirectories(channel, parent(path));
+		try {
+			channel.mkdir(path);
+		} catch (SftpException e) {
+			throw new IOException("Unable to create remote directory " + path
+					+ ". Error is: " + e.getMessage(), e);
+		}
+	}
+
+	private void removeDirectory(final ChannelSftp channel, final String path)
+			throws SftpException {
+		@SuppressWarnings("unchecked")
+		Vector<ChannelSftp.LsEntry> entries = channel.ls(path);
+		for (ChannelSftp.LsEntry entry : entries) {
+			String name = entry.getFilename();
+			if (name.equals(".") || name.equals(".."))
+				continue;
+			if (entry.getAttrs().isDir())
+				removeDirectory(channel, path + "/" + name);
+			else
+				channel.rm(path + "/" + name);
+		}
+		channel.rmdir(path);
+	}
+
+	/**
+	 * @return whether the given path is an existing directory
+	 */
+	static boolean isDirectory(final ChannelSftp channel, final String path)
+			throws SftpException {
+		try {
+			SftpATTRS attributes = channel.stat(path);
+			return attributes.isDir();
+		} catch (SftpException e) {
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+				return false;
+			throw e;
+		}
+	}
+
+	static String parent(final String path) {
+		int i = path.lastIndexOf('/');
+		return i <= 0 ? (i == 0 ? "/" : "") : path.substring(0, i);
+	}
+
+	/**
+	 * Leases an SFTP channel, opening a new one if all of them are in use and
+	 * the maximum number of channels has not been reached.
+	 */
+	ChannelSftp leaseChannel() throws JSchException, InterruptedException {
+		synchronized (this.channels) {
+			while (this.idleChannels.isEmpty()
+					&& this.channels.size() >= this.maxChannels)
+				this.channels.wait();
+			if (!this.idleChannels.isEmpty())
+				return this.idleChannels.removeFirst();
+			// Reserve a place for the new channel
+			this.channels.add(null);
+		}
+		ChannelSftp channel = null;
+		try {
+			channel = (ChannelSftp) this.session.openChannel("sftp");
+			channel.connect(this.connectionTimeout);
+			logger.info("SFTP channel opened in " + this.host);
+			return channel;
+		} finally {
+			synchronized (this.channels) {
+				this.channels.remove(null);
+				if (channel != null && channel.isConnected())
+					this.channels.add(channel);
+				this.channels.notifyAll();
+			}
+		}
+	}
+
+	void releaseChannel(final ChannelSftp channel) {
+		synchronized (this.channels) {
+			if (this.channels.contains(channel))
+				this.idleChannels.add(channel);
+			this.channels.notifyAll();
+		}
+	}
+
+	/**
+	 * Stops the transfers in progress: the SFTP channels in use are
+	 * disconnected (and discarded), and the archive uploads are cancelled.
+	 * The uploads fail immediately.
+	 * 
+	 * @return the number of stopped transfers
+	 */
+	public int cancel() {
+		List<ChannelSftp> busy = new ArrayList<ChannelSftp>();
+		synchronized (this.channels) {
+			for (ChannelSftp channel : this.channels) {
+				if (channel != null && !this.idleChannels.contains(channel))
+					busy.add(channel);
+			}
+			this.channels.removeAll(busy);
+			this.channels.notifyAll();
+		}
+		for (ChannelSftp channel : busy)
+			channel.disconnect();
+		List<ArchiveTransfer> transfers = new ArrayList<ArchiveTransfer>(
+				this.activeTransfers);
+		for (ArchiveTransfer transfer : transfers)
+			transfer.cancel();
+		if (!busy.isEmpty() || !transfers.isEmpty())
+			logger.info("Cancelled " + (busy.size() + transfers.size())
+					+ " transfer(s) in " + this.host);
+		return busy.size() + transfers.size();
+	}
+
+	public void close() {
+		synchronized (this.channels) {
+			for (ChannelSftp channel : this.channels) {
+				if (channel != null && channel.isConnected())
+					channel.disconnect();
+			}
+			this.channels.clear();
+			this.idleChannels.clear();
+		}
+	}
+
+	public Host host() {
+		return this.host;
+	}
+
+}
@@ -18,19 +18,21 @@
  */
 package org.amelia.dsl.lib;
 
-import static net.sf.expectit.filter.Filters.removeColors;
-import static net.sf.expectit.filter.Filters.removeNonPrintable;
 import static net.sf.expectit.matcher.Matchers.regexp;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,19 +41,18 @@ import org.amelia.dsl.lib.descriptors.Host;
 import org.amelia.dsl.lib.util.Arrays;
 import org.amelia.dsl.lib.util.AuthenticationUserInfo;
 import org.amelia.dsl.lib.util.Log;
+import org.amelia.dsl.lib.util.SessionLog;
 import org.amelia.dsl.lib.util.ShellUtils;
 import org.amelia.dsl.lib.util.Threads;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 import com.jcraft.jsch.UserInfo;
 
 import net.sf.expectit.Expect;
-import net.sf.expectit.ExpectBuilder;
 import net.sf.expectit.Result;
 
 /**
@@ -60,14 +61,59 @@ import net.sf.expectit.Result;
 public class SSHHandler extends Thread {
 
 	/**
+	 * A bounded log of the characters read and written by a shell channel.
+	 * Characters are addressed by offsets that increase monotonically; only
+	 * the most recent ones are kept in memory, in a ring of fixed-size
+	 * segments. Older segments are either discarded or spilled to a
+	 * temporary file.
+	 * 
 	 * @author Miguel Jiménez - Initial contribution and API
 	 */
 	public static final class OutputLog implements Appendable {
 
 		/**
-		 * All lines read by the SSH channel.
+		 * The number of characters per segment
 		 */
-		private final ArrayList<CharSequence> logs;
+		private static final int SEGMENT_SIZE = 8192;
+
+		/**
+		 * The number of chunk offsets to remember
+		 */
+		private static final int MAX_CHUNKS = 65536;
+
+		/**
+		 * The initial number of chunk offsets, doubled as chunks are appended
+		 */
+		private static final int INITIAL_CHUNKS = 64;
+
+		/**
+		 * The segments kept in memory. The segment containing offset i is
+		 * stored in position (i / SEGMENT_SIZE) % segments.length.
+		 */
+		private final char[][] segments;
+
+		/**
+		 * The offsets at which the last appended chunks start. The array grows
+		 * up to {@link #MAX_CHUNKS} positions, and then it is used as a ring.
+		 */
+		private long[] chunks;
+
+		/**
+		 * The number of characters appended so far
+		 */
+		private long offset;
+
+		/**
+		 * The number of chunks appended so far
+		 */
+		private long nChunks;
+
+		/**
+		 * Whether evicted segments are written to a temporary file
+		 */
+		private final boolean spill;
+
+		private RandomAccessFile spillFile;
 
 		/**
 		 * Sinks fed by this appendable.
@@ -75,10 +121,28 @@ public class SSHHandler extends Thread {
 		private final List<Appendable> replicas;
 
 		/**
-		 * Default constructor.
+		 * Creates a log configured with the properties
+		 * {@code amelia.output_log_capacity} and
+		 * {@code amelia.output_log_spill}.
 		 */
 		public OutputLog() {
-			this.logs = new ArrayList<CharSequence>();
+			this(Integer.parseInt(System.getProperty("amelia.output_log_capacity",
+					"1048576")), Boolean.parseBoolean(System
+					.getProperty("amelia.output_log_spill")));
+		}
+
+		/**
+		 * @param capacity
+		 *            The number of characters to keep in memory
+		 * @param spill
+		 *            Whether to write the characters evicted from memory to a
+		 *            temporary file
+		 */
+		public OutputLog(final int capacity, final boolean spill) {
+			int nSegments = Math.max(2, (capacity + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			this.segments = new char[nSegments][];
+			this.chunks = new long[INITIAL_CHUNKS];
+			this.spill = spill;
 			this.replicas = new ArrayList<Appendable>();
 		}
 
@@ -97,8 +161,20 @@ public class SSHHandler extends Thread {
 		 */
 		@Override
 		public Appendable append(CharSequence csq) throws IOException {
-			if (!csq.toString().isEmpty() && !csq.toString().equals("\n")) {
-				this.logs.add(csq);
+			String str = csq.toString();
+			if (!str.isEmpty() && !str.equals("\n")) {
+				synchronized (this) {
+					// The ring has not wrapped yet, so positions are kept
+					if (this.nChunks == this.chunks.length
+							&& this.chunks.length < MAX_CHUNKS) {
+						long[] chunks = new long[Math.min(MAX_CHUNKS,
+								this.chunks.length * 2)];
+						System.arraycopy(this.chunks, 0, chunks, 0, this.chunks.length);
+						this.chunks = chunks;
+					}
+					this.chunks[(int) (this.nChunks++ % MAX_CHUNKS)] = this.offset;
+					write(str);
+				}
 				for (Appendable tmp: this.replicas)
 					tmp.append(csq);
 			}
@@ -126,12 +202,130 @@ public class SSHHandler extends Thread {
 			return this;
 		}
 
+		private void write(String str) throws IOException {
+			int i = 0;
+			while (i < str.length()) {
+				long segment = this.offset / SEGMENT_SIZE;
+				int position = (int) (this.offset % SEGMENT_SIZE);
+				int slot = (int) (segment % this.segments.length);
+				if (position == 0) {
+					if (this.segments[slot] == null)
+						this.segments[slot] = new char[SEGMENT_SIZE];
+					else if (this.spill)
+						spill(this.segments[slot], segment - this.segments.length);
+				}
+				int n = Math.min(SEGMENT_SIZE - position, str.length() - i);
+				str.getChars(i, i + n, this.segments[slot], position);
+				this.offset += n;
+				i += n;
+			}
+		}
+
+		private void spill(char[] segment, long index) throws IOException {
+			if (this.spillFile == null) {
+				File file = File.createTempFile("amelia-output", ".log");
+				file.deleteOnExit();
+				this.spillFile = new RandomAccessFile(file, "rw");
+			}
+			byte[] bytes = new byte[SEGMENT_SIZE * 2];
+			for (int i = 0; i < SEGMENT_SIZE; i++) {
+				bytes[2 * i] = (byte) (segment[i] >>> 8);
+				bytes[2 * i + 1] = (byte) segment[i];
+			}
+			this.spillFile.seek(index * SEGMENT_SIZE * 2);
+			this.spillFile.write(bytes);
+		}
+
 		/**
-		 * @return a cloned version of the current list of logs
+		 * @return the offset of the first character kept in memory
 		 */
-		@SuppressWarnings("unchecked")
-		public synchronized List<CharSequence> logs() {
-			return (List<CharSequence>) this.logs.clone();
+		private long memoryStart() {
+			if (this.offset == 0)
+				return 0;
+			long last = (this.offset - 1) / SEGMENT_SIZE;
+			return Math.max(0, last - this.segments.length + 1) * SEGMENT_SIZE;
+		}
+
+		/**
+		 * @return the offset of the first character that can be read
+		 */
+		public synchronized long start() {
+			return this.spill ? 0 : memoryStart();
+		}
+
+		/**
+		 * @return the number of characters appended so far, that is, the
+		 *         offset of the next character
+		 */
+		public synchronized long offset() {
+			return this.offset;
+		}
+
+		/**
+		 * @return the number of chunks appended so far
+		 */
+		public synchronized long chunks() {
+			return this.nChunks;
+		}
+
+		/**
+		 * @param chunk
+		 *            The index of a chunk
+		 * @return the offset at which the given chunk starts, or the offset of
+		 *         the next character if the chunk has not been appended yet
+		 */
+		public synchronized long offsetOf(long chunk) {
+			if (chunk >= this.nChunks)
+				return this.offset;
+			if (chunk < this.nChunks - MAX_CHUNKS)
+				return start();
+			return this.chunks[(int) (chunk % MAX_CHUNKS)];
+		}
+
+		/**
+		 * Copies the characters between two offsets. Characters that are no
+		 * longer available are omitted.
+		 * 
+		 * @param from
+		 *            The offset of the first character (inclusive)
+		 * @param to
+		 *            The offset of the last character (exclusive)
+		 * @return the characters between the given offsets
+		 * @throws IOException
+		 *             If there is an error reading the spilled characters
+		 */
+		public synchronized String slice(long from, long to) throws IOException {
+			from = Math.max(from, start());
+			to = Math.min(to, this.offset);
+			if (from >= to)
+				return "";
+			StringBuilder sb = new StringBuilder((int) (to - from));
+			long memoryStart = memoryStart();
+			if (from < memoryStart) {
+				long end = Math.min(to, memoryStart);
+				byte[] bytes = new byte[(int) (end - from) * 2];
+				this.spillFile.seek(from * 2);
+				this.spillFile.readFully(bytes);
+				for (int i = 0; i < bytes.length; i += 2)
+					sb.append((char) (((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff)));
+				from = end;
+			}
+			while (from < to) {
+				int slot = (int) ((from / SEGMENT_SIZE) % this.segments.length);
+				int position = (int) (from % SEGMENT_SIZE);
+				int n = (int) Math.min(SEGMENT_SIZE - position, to - from);
+				sb.append(this.segments[slot], position, n);
+				from += n;
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * Releases the temporary file, if any
+		 */
+		public synchronized void close() throws IOException {
+			if (this.spillFile != null)
+				this.spillFile.close();
 		}
 
 		public List<Appendable> replicas() {
@@ -146,9 +340,71 @@ public class SSHHandler extends Thread {
 
 	private Session session;
 
-	private Channel channel;
+	/**
+	 * The first shell channel opened on the session
+	 */
+	private volatile ShellChannel shell;
 
-	private Expect expect;
+	/**
+	 * All of the shell channels opened on the session
+	 */
+	private final List<ShellChannel> channels;
+
+	/**
+	 * The shell channels that are not leased at the moment
+	 */
+	private final LinkedList<ShellChannel> idleChannels;
+
+	/**
+	 * The number of channels being opened at the moment
+	 */
+	private int openingChannels;
+
+	/**
+	 * The maximum number of shell channels to open on the session
+	 */
+	private final int maxChannels;
+
+	/**
+	 * The channel leased by the current thread, if any
+	 */
+	private final ThreadLocal<ShellChannel> leasedChannel;
+
+	/**
+	 * The channel in which each descriptor was executed
+	 */
+	private final Map<CommandDescriptor, ShellChannel> usedChannels;
+
+	/**
+	 * The output offset at which each descriptor started its execution
+	 */
+	private final Map<CommandDescriptor, Long> startOffsets;
+
+	/**
+	 * The shell channels executing a command at the moment
+	 */
+	private final Set<ShellChannel> busyChannels;
+
+	/**
+	 * The exec channels executing a command at the moment
+	 */
+	private final Set<ExecChannel> activeExecChannels;
+
+	/**
+	 * The descriptor being executed by the current thread, if any
+	 */
+	private final ThreadLocal<CommandDescriptor> currentDescriptor;
+
+	/**
+	 * The script in which each pending descriptor is executed, if any
+	 */
+	private final Map<CommandDescriptor, ScriptBatch> batches;
+
+	/**
+	 * The working directory set by the last cd command executed on an exec
+	 * channel (or {@code null} if there is none)
+	 */
+	private volatile String workingDirectory;
 
 	private final int connectionTimeout;
 
@@ -156,17 +412,22 @@ public class SSHHandler extends Thread {
 
 	private File output;
 
+	/**
+	 * Echoes the input and output of all channels
+	 */
+	private SessionLog sessionLog;
+
+	/**
+	 * Transfers files over the session, created on demand
+	 */
+	private SFTPHandler sftp;
+
 	private final List<CommandDescriptor> executions;
 
 	private final SingleThreadTaskQueue taskQueue;
 	
 	private final SimpleDateFormat dateFormat;
 
-	/**
-	 * A runtime representation of the shell channel.
-	 */
-	private final OutputLog outputLog;
-
 	/**
 	 * The logger
 	 */
@@ -181,21 +442,37 @@ public class SSHHandler extends Thread {
 				.getProperty("amelia.execution_timeout");
 		this.connectionTimeout = Integer.parseInt(_connectionTimeout);
 		this.executionTimeout = Integer.parseInt(_executionTimeout);
-		this.executions = new ArrayList<CommandDescriptor>();
+		this.maxChannels = Math.max(1,
+				Integer.parseInt(System.getProperty("amelia.max_channels")));
+		this.channels = new ArrayList<ShellChannel>();
+		this.idleChannels = new LinkedList<ShellChannel>();
+		this.leasedChannel = new ThreadLocal<ShellChannel>();
+		this.usedChannels = new ConcurrentHashMap<CommandDescriptor, ShellChannel>();
+		this.startOffsets = new ConcurrentHashMap<CommandDescriptor, Long>();
+		this.busyChannels = Collections.newSetFromMap(
+				new ConcurrentHashMap<ShellChannel, Boolean>());
+		this.activeExecChannels = Collections.newSetFromMap(
+				new ConcurrentHashMap<ExecChannel, Boolean>());
+		this.currentDescriptor = new ThreadLocal<CommandDescriptor>();
+		this.batches = new ConcurrentHashMap<CommandDescriptor, ScriptBatch>();
+		this.executions = Collections.synchronizedList(new ArrayList<CommandDescriptor>());
 		this.taskQueue = new SingleThreadTaskQueue();
 		this.dateFormat = new SimpleDateFormat("yyyy-MM-dd@HH:mm:ss.SSS");
-		// prepare the output log and file
+		// prepare the output file
 		this.output = createOutputFile();
-		this.outputLog = new OutputLog();
-		this.outputLog.echoTo(new PrintStream(this.output, "UTF-8"));
+		this.sessionLog = new SessionLog(this.output);
 		// Handle uncaught exceptions
 		this.taskQueue.setUncaughtExceptionHandler(Threads.exceptionHandler());
 	}
 	
 	public void setup() throws Exception {
 		connect();
-		initialize();
-		configure();
+		this.shell = new ShellChannel(0, this.session, this.sessionLog,
+				this.connectionTimeout, this.executionTimeout);
+		synchronized (this.channels) {
+			this.channels.add(this.shell);
+			this.idleChannels.add(this.shell);
+		}
 	}
 
 	@Override
@@ -230,71 +507,269 @@ public class SSHHandler extends Thread {
 		UserInfo ui = new AuthenticationUserInfo();
 		this.session.setUserInfo(ui);
 		this.session.connect(this.connectionTimeout);
-		this.channel = session.openChannel("shell");
-		this.channel.connect(this.connectionTimeout);
 	}
 
-	private void initialize() throws Exception {
-		this.expect = new ExpectBuilder()
-			.withOutput(this.channel.getOutputStream())
-			.withInputs(this.channel.getInputStream(),
-				this.channel.getExtInputStream())
-			.withEchoInput(this.outputLog)
-			.withEchoOutput(this.outputLog)
-			.withInputFilters(removeColors(), removeNonPrintable())
-			.withExceptionOnFailure()
-			.withTimeout(this.executionTimeout, TimeUnit.MILLISECONDS)
-			.build();
+	/**
+	 * Executes a command in this host.
+	 * 
+	 * @return whether the command finished successfully
+	 */
+	public boolean executeCommand(final CommandDescriptor descriptor,
+		final ScheduledTask<?> command) throws InterruptedException {
+		boolean completed;
+		if (this.maxChannels > 1) {
+			executeOnLeasedChannel(descriptor, command);
+			completed = true;
+		} else {
+			// The queue returns null if the task is cancelled or fails
+			Boolean result = this.taskQueue.execute(new Callable<Boolean>() {
+				@Override public Boolean call() throws Exception {
+					try {
+						syncWorkingDirectory(shell);
+						startOffsets.put(descriptor, shell.outputLog().offset());
+						usedChannels.put(descriptor, shell);
+						currentDescriptor.set(descriptor);
+						busyChannels.add(shell);
+						command.call(
+							host,
+							ShellUtils.ameliaPromptRegexp(),
+							false
+						);
+						return true;
+					} catch (Exception e) {
+						logger.error(e);
+						throw e;
+					} finally {
+						busyChannels.remove(shell);
+						currentDescriptor.remove();
+						batches.remove(descriptor);
+					}
+				}
+			});
+			completed = Boolean.TRUE.equals(result);
+		}
+
+		if (descriptor.isExecution()) {
+			this.executions.add(descriptor);
+		}
+		return completed;
 	}
 
-	private void configure() throws IOException {
-		String prompt = ShellUtils.ameliaPromptRegexp();
-		String initialPrompt = "\\$|#";
+	/**
+	 * Executes the given task in the current thread, using a shell channel
+	 * leased for the duration of the task. If it is idle, the task uses the
+	 * channel in which its same-host dependencies were executed (if any), so
+	 * that the state of the shell (e.g., the working directory) is preserved.
+	 */
+	private void executeOnLeasedChannel(final CommandDescriptor descriptor,
+			final ScheduledTask<?> command) throws InterruptedException {
+		ShellChannel channel = leaseChannel(preferredChannel(descriptor));
+		this.leasedChannel.set(channel);
+		try {
+			syncWorkingDirectory(channel);
+			this.startOffsets.put(descriptor, channel.outputLog().offset());
+			this.currentDescriptor.set(descriptor);
+			this.busyChannels.add(channel);
+			command.call(host, ShellUtils.ameliaPromptRegexp(), false);
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			logger.error(e);
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			this.busyChannels.remove(channel);
+			this.currentDescriptor.remove();
+			this.batches.remove(descriptor);
+			this.leasedChannel.remove();
+			this.usedChannels.put(descriptor, channel);
+			releaseChannel(channel);
+		}
+	}
 
-		this.expect.expect(regexp(initialPrompt));
+	private ShellChannel preferredChannel(final CommandDescriptor descriptor) {
+		for (CommandDescriptor dependency : descriptor.dependencies()) {
+			if (descriptor.isSameHostDependency(dependency)
+					&& this.usedChannels.containsKey(dependency))
+				return this.usedChannels.get(dependency);
+		}
+		return null;
+	}
 
-		// Switch off echo
-		this.expect.sendLine("stty -echo");
-		this.expect.expect(regexp(initialPrompt));
+	/**
+	 * Leases a shell channel, opening a new one if all of them are in use and
+	 * the maximum number of channels has not been reached.
+	 * 
+	 * @param preferred
+	 *            The channel to lease if it is idle, or {@code null}. This is
+	 *            only a hint: any other idle (or new) channel is leased
+	 *            otherwise
+	 * @return a channel that is not in use by any other task
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for a channel
+	 */
+	private ShellChannel leaseChannel(final ShellChannel preferred)
+			throws InterruptedException {
+		int id;
+		synchronized (this.channels) {
+			while (true) {
+				if (preferred != null && this.idleChannels.remove(preferred)) {
+					return preferred;
+				} else if (!this.idleChannels.isEmpty()) {
+					return this.idleChannels.removeFirst();
+				} else if (this.channels.size() + this.openingChannels < this.maxChannels) {
+					break;
+				}
+				this.channels.wait();
+			}
+			id = this.channels.size() + this.openingChannels++;
+		}
+		ShellChannel channel = null;
+		try {
+			channel = new ShellChannel(id, this.session, this.sessionLog,
+					this.connectionTimeout, this.executionTimeout);
+			logger.info("Shell channel " + id + " opened in " + this.host);
+		} catch (Exception e) {
+			throw new RuntimeException("Could not open a new shell channel in host "
+					+ this.host + ": " + e.getMessage(), e);
+		} finally {
+			synchronized (this.channels) {
+				this.openingChannels--;
+				if (channel != null)
+					this.channels.add(channel);
+				this.channels.notifyAll();
+			}
+		}
+		return channel;
+	}
 
-		// Query the current shell
-		this.expect.sendLine(ShellUtils.currentShellCommand());
-		Result result = this.expect.expect(regexp(initialPrompt));
+	private void releaseChannel(final ShellChannel channel) {
+		synchronized (this.channels) {
+			// Cancelled channels are closed and discarded
+			if (this.channels.contains(channel))
+				this.idleChannels.add(channel);
+			this.channels.notifyAll();
+		}
+	}
 
-		String shell = result.getBefore().split("\n")[0].trim();
+	/**
+	 * Changes the working directory of the given shell channel to the one
+	 * set by commands executed on exec channels, if they differ.
+	 */
+	private void syncWorkingDirectory(final ShellChannel channel)
+			throws IOException {
+		String directory = this.workingDirectory;
+		if (directory == null || directory.equals(channel.workingDirectory()))
+			return;
+		channel.expect().sendLine("cd " + ShellUtils.quote(directory));
+		channel.expect().expect(regexp(ShellUtils.ameliaPromptRegexp()));
+		channel.workingDirectory(directory);
+	}
 
-		if (!shell.matches("bash|zsh")) {
-			RuntimeException e = new RuntimeException(
-					"Shell not supported: " + shell);
-			logger.error("Shell not supported: " + shell, e);
-			throw e;
+	/**
+	 * Executes a command on a new exec channel, within the working directory
+	 * set by previous cd commands (if any).
+	 * 
+	 * @param command
+	 *            The command to execute
+	 * @param timeout
+	 *            The time to wait for the command to finish (in milliseconds),
+	 *            0 to use the default timeout, or -1 to wait indefinitely
+	 * @return the executed channel, containing the output and exit status
+	 * @throws Exception
+	 *             If the channel cannot be opened, or the command does not
+	 *             finish within the timeout
+	 */
+	public ExecChannel exec(final String command, final long timeout)
+			throws Exception {
+		String directory = this.workingDirectory;
+		String _command = directory == null ? command
+				: "cd " + ShellUtils.quote(directory) + " && " + command;
+		ExecChannel channel = new ExecChannel(this.session, _command);
+		this.activeExecChannels.add(channel);
+		try {
+			channel.execute(this.connectionTimeout,
+					timeout == 0 ? this.executionTimeout : timeout);
+		} finally {
+			this.activeExecChannels.remove(channel);
+			this.sessionLog.append("[exec] " + _command + "\n");
+			this.sessionLog.append(channel.stdout());
+			this.sessionLog.append(channel.stderr());
 		}
+		return channel;
+	}
+
+	/**
+	 * Executes the given descriptors as a single script, as soon as the first
+	 * one is executed. Each descriptor must depend on the previous one.
+	 * 
+	 * @param steps
+	 *            The descriptors to execute
+	 */
+	public void batch(final List<CommandDescriptor> steps) {
+		ScriptBatch batch = new ScriptBatch(steps);
+		for (CommandDescriptor step : steps)
+			this.batches.put(step, batch);
+	}
 
-		// Change shell prompt to the Amelia prompt
-		this.expect.sendLine(ShellUtils.ameliaPromptFormat(shell));
-		this.expect.expect(regexp(prompt));
+	/**
+	 * Executes the script containing the descriptor being executed by the
+	 * current thread, if it has not been executed yet.
+	 * 
+	 * @param command
+	 *            The command being executed on behalf of the descriptor
+	 * @param expect
+	 *            The shell in which the script is executed
+	 * @param prompt
+	 *            The shell prompt
+	 * @return the result of the command within the script, or {@code null} if
+	 *         the command must be executed on its own
+	 * @throws IOException
+	 *             If there is an error executing the script
+	 */
+	public ScriptBatch.Step batchedStep(final String command,
+			final Expect expect, final String prompt) throws IOException {
+		CommandDescriptor descriptor = this.currentDescriptor.get();
+		ScriptBatch batch = descriptor == null ? null
+				: this.batches.remove(descriptor);
+		if (batch == null)
+			return null;
+		return batch.result(descriptor, command, expect, prompt,
+				this.executionTimeout);
 	}
 
-	public void executeCommand(final CommandDescriptor descriptor,
-		final ScheduledTask<?> command) throws InterruptedException {
-		this.taskQueue.execute(new Callable<Object>() {
-			@Override public Object call() throws Exception {
-				try {
-					return command.call(
-						host,
-						ShellUtils.ameliaPromptRegexp(),
-						false
-					);
-				} catch (Exception e) {
-					logger.error(e);
-					throw e;
-				}
-			}
-		});
+	/**
+	 * @param descriptor
+	 *            A descriptor executed in this host
+	 * @return the output of the shell channel in which the descriptor was
+	 *         executed, since the descriptor started its execution
+	 * @throws IOException
+	 *             If there is an error reading the output
+	 */
+	public String output(final CommandDescriptor descriptor) throws IOException {
+		ShellChannel channel = this.usedChannels.get(descriptor);
+		Long start = this.startOffsets.get(descriptor);
+		if (channel == null || start == null)
+			return "";
+		OutputLog log = channel.outputLog();
+		return log.slice(start, log.offset());
+	}
 
-		if (descriptor.isExecution()) {
-			this.executions.add(descriptor);
-		}
+	/**
+	 * @return the working directory set by cd commands executed on exec
+	 *         channels, or {@code null} if there is none
+	 */
+	public String workingDirectory() {
+		return this.workingDirectory;
+	}
+
+	/**
+	 * Sets the working directory in which the following commands are executed
+	 * 
+	 * @param workingDirectory
+	 *            An absolute path in the remote host
+	 */
+	public void workingDirectory(final String workingDirectory) {
+		this.workingDirectory = workingDirectory;
 	}
 
 	public int stopExecutions(List<CommandDescriptor> executions) throws IOException {
@@ -309,11 +784,12 @@ public class SSHHandler extends Thread {
 			CommandDescriptor descriptor = executions.remove(i);
 			String command = prepareRunCommand(descriptor.toCommandString());
 			String[] data = command.split(" "); // data[0]: compositeName
-			this.expect.sendLine(ShellUtils.runningCompositeName(command));
-			Result r = this.expect.expect(regexp(prompt));
+			Expect expect = this.shell.expect();
+			expect.sendLine(ShellUtils.runningCompositeName(command));
+			Result r = expect.expect(regexp(prompt));
 			if (r.getBefore().contains(data[0])) {
-				this.expect.sendLine(ShellUtils.killCommand(command));
-				this.expect.expect(regexp(prompt));
+				expect.sendLine(ShellUtils.killCommand(command));
+				expect.expect(regexp(prompt));
 				components.add(data[0]);
 				logger.info("Execution of composite " + data[0]
 						+ " was successfully stopped in " + this.host);
@@ -345,6 +821,90 @@ public class SSHHandler extends Thread {
 		}
 	}
 
+	/**
+	 * Cancels the commands in execution in this host. Shell channels are sent
+	 * an interrupt (Ctrl-C); if a command is still running after the given
+	 * grace period, its process group is killed, and the channel is closed so
+	 * that the task waiting for it fails immediately. The remote processes
+	 * started on exec channels are killed, and the file transfers in progress
+	 * over SFTP are stopped.
+	 * 
+	 * @param gracePeriod
+	 *            The time to wait for interrupted commands to finish (in
+	 *            milliseconds)
+	 * @return the number of cancelled commands
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the commands
+	 *             to finish
+	 */
+	public int cancel(final long gracePeriod) throws InterruptedException {
+		int transfers = 0;
+		synchronized (this) {
+			if (this.sftp != null)
+				transfers = this.sftp.cancel();
+		}
+		List<ShellChannel> channels = new ArrayList<ShellChannel>(this.busyChannels);
+		List<ExecChannel> execChannels = new ArrayList<ExecChannel>(this.activeExecChannels);
+		if (channels.isEmpty() && execChannels.isEmpty())
+			return transfers;
+		StringBuilder kill = new StringBuilder();
+		for (ExecChannel channel : execChannels) {
+			channel.cancel();
+			if (channel.pid() != -1)
+				kill.append(ShellUtils.killTreeCommand(channel.pid()) + "; ");
+		}
+		for (ShellChannel channel : channels) {
+			try {
+				channel.interrupt();
+			} catch (IOException e) {
+				logger.error("Could not interrupt channel " + channel.id()
+						+ " in " + this.host, e);
+			}
+		}
+		long deadline = System.currentTimeMillis() + gracePeriod;
+		while (!Collections.disjoint(this.busyChannels, channels)
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		channels.retainAll(this.busyChannels);
+		for (ShellChannel channel : channels) {
+			if (channel.pid() != -1)
+				kill.append(ShellUtils.killForegroundCommand(channel.pid()) + "; ");
+		}
+		if (kill.length() > 0) {
+			ExecChannel channel = new ExecChannel(this.session, kill.toString());
+			try {
+				// A connection timeout of 0 means no timeout
+				channel.execute(this.connectionTimeout,
+						this.connectionTimeout > 0 ? this.connectionTimeout : -1);
+			} catch (Exception e) {
+				logger.error("Could not kill remote processes in " + this.host, e);
+			}
+		}
+		for (ShellChannel channel : channels) {
+			try {
+				channel.close();
+				// The first channel is used to stop executions
+				if (channel == this.shell)
+					replaceShell();
+			} catch (Exception e) {
+				logger.error(e);
+			}
+		}
+		return transfers + execChannels.size() + channels.size();
+	}
+
+	private void replaceShell() throws JSchException, IOException {
+		ShellChannel shell = new ShellChannel(0, this.session,
+				this.sessionLog, this.connectionTimeout, this.executionTimeout);
+		synchronized (this.channels) {
+			this.channels.remove(this.shell);
+			this.idleChannels.remove(this.shell);
+			this.channels.add(shell);
+			this.idleChannels.add(shell);
+			this.shell = shell;
+		}
+	}
+
 	/**
 	 * Stops current executions on the task queue
 	 */
@@ -360,24 +920,56 @@ public class SSHHandler extends Thread {
 		return this.executions;
 	}
 
+	/**
+	 * @return the expect object of the shell channel leased by the current
+	 *         thread, or the one of the first channel if no channel is leased
+	 */
 	public Expect expect() {
-		return this.expect;
+		return currentChannel().expect();
+	}
+
+	/**
+	 * @return the shell channel leased by the current thread, or the first
+	 *         channel if no channel is leased
+	 */
+	public ShellChannel currentChannel() {
+		ShellChannel channel = this.leasedChannel.get();
+		return channel != null ? channel : this.shell;
+	}
+
+	/**
+	 * @return the handler transferring files over this host's SSH session
+	 */
+	public synchronized SFTPHandler sftp() {
+		if (this.sftp == null)
+			this.sftp = new SFTPHandler(this.host, this.session,
+					this.connectionTimeout);
+		return this.sftp;
 	}
 
 	public boolean close() throws IOException {
-		if (this.expect != null)
-			this.expect.close();
-		if (this.channel != null && this.channel.isConnected())
-			this.channel.disconnect();
+		synchronized (this) {
+			if (this.sftp != null)
+				this.sftp.close();
+		}
+		synchronized (this.channels) {
+			for (ShellChannel channel : this.channels)
+				channel.close();
+		}
 		if (this.session != null && this.session.isConnected())
 			this.session.disconnect();
+		try {
+			this.sessionLog.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		return !this.isConnected();
 	}
 
 	public boolean isConnected() {
-		if (this.session == null || this.channel == null)
+		if (this.session == null || this.shell == null)
 			return false;
-		return this.session.isConnected() && this.channel.isConnected();
+		return this.session.isConnected() && this.shell.isConnected();
 	}
 
 	private File createOutputFile() throws Exception {
@@ -388,7 +980,9 @@ public class SSHHandler extends Thread {
 		try {
 			if (!parent.exists())
 				parent.mkdirs();
-			file.createNewFile();
+			// Compressed logs are created by the session log itself
+			if (!Boolean.getBoolean("amelia.session_log_compress"))
+				file.createNewFile();
 		} catch (IOException e) {
 			throw new Exception(
 					"The application does not have permission to create files", e);
@@ -401,10 +995,11 @@ public class SSHHandler extends Thread {
 	}
 
 	/**
-	 * @return a runtime representation of the shell channel
+	 * @return a runtime representation of the shell channel leased by the
+	 *         current thread (or the first channel if no channel is leased)
 	 */
 	public OutputLog outputLog() {
-		return this.outputLog;
+		return currentChannel().outputLog();
 	}
 
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import static net.sf.expectit.matcher.Matchers.regexp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.util.ShellUtils;
+
+import net.sf.expectit.Expect;
+import net.sf.expectit.ExpectIOException;
+
+/**
+ * A sequence of commands executed in a host as a single shell script. The
+ * script is sent once, through a here-document, and sourced in the current
+ * shell, so that changes of working directory are preserved. Each command is
+ * wrapped between two markers, the last one carrying its exit code; the
+ * script stops after the first command that fails or prints one of its error
+ * texts.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ScriptBatch {
+
+	/**
+	 * The result of a command executed within the script
+	 */
+	public static class Step {
+
+		private final String output;
+
+		private final String status;
+
+		public Step(final String output, final String status) {
+			this.output = output;
+			this.status = status;
+		}
+
+		public String output() {
+			return this.output;
+		}
+
+		/**
+		 * @return the exit code of the command, or {@link ScriptBatch#ERROR}
+		 *         if its output contains one of its error texts
+		 */
+		public String status() {
+			return this.status;
+		}
+	}
+
+	/**
+	 * The status of a command whose output contains one of its error texts
+	 */
+	public static final String ERROR = "E";
+
+	private final List<CommandDescriptor> steps;
+
+	private final String id;
+
+	/**
+	 * The results of the executed commands, or {@code null} if the script has
+	 * not been executed yet
+	 */
+	private Map<CommandDescriptor, Step> results;
+
+	/**
+	 * @param steps
+	 *            The commands to execute, in order. Each command depends on
+	 *            the previous one.
+	 */
+	public ScriptBatch(final List<CommandDescriptor> steps) {
+		this.steps = steps;
+		this.id = UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Returns the result of the given step. The script is executed when the
+	 * first step requests its result; later steps only collect theirs.
+	 * 
+	 * @param descriptor
+	 *            The step
+	 * @param command
+	 *            The command being executed on behalf of the step
+	 * @param expect
+	 *            The shell in which the script is executed
+	 * @param prompt
+	 *            The shell prompt
+	 * @param defaultTimeout
+	 *            The timeout of the commands without one
+	 * @return the result of the step, or {@code null} if the step was not
+	 *         executed by the script
+	 * @throws IOException
+	 *             If there is an error executing the script
+	 */
+	public synchronized Step result(final CommandDescriptor descriptor,
+			final String command, final Expect expect, final String prompt,
+			final long defaultTimeout) throws IOException {
+		if (!descriptor.toCommandString().trim().equals(command.trim()))
+			return null;
+		if (this.results == null) {
+			// Only the first step can start the script
+			if (!this.steps.isEmpty() && this.steps.get(0) != descriptor)
+				return null;
+			execute(expect, prompt, defaultTimeout);
+		}
+		return this.results.get(descriptor);
+	}
+
+	private void execute(final Expect expect, final String prompt,
+			final long defaultTimeout) throws IOException {
+		this.results = new HashMap<CommandDescriptor, Step>();
+		long timeout = 0;
+		for (CommandDescriptor step : this.steps) {
+			if (step.timeout() == -1) {
+				timeout = -1;
+				break;
+			}
+			timeout += step.timeout() == 0 ? defaultTimeout : step.timeout();
+		}
+		Expect _expect = timeout == -1 ? expect.withInfiniteTimeout()
+				: expect.withTimeout(timeout, TimeUnit.MILLISECONDS);
+		String response;
+		try {
+			_expect.send(script());
+			response = _expect.expect(regexp(endRegexp())).getBefore();
+			_expect.expect(regexp(prompt));
+		} catch (ExpectIOException e) {
+			throw new RuntimeException(
+				String.format(
+					"Operation timeout waiting for a script of %d commands",
+					this.steps.size()
+				)
+			);
+		}
+		Pattern pattern = Pattern.compile(
+				"--AMELIA-STEP:" + this.id + ":([0-9]+)--\r?\n(.*?)\r?\n?"
+						+ "--AMELIA-STEP-END:" + this.id + ":\\1:([0-9]+|" + ERROR + ")--",
+				Pattern.DOTALL);
+		Matcher matcher = pattern.matcher(response);
+		while (matcher.find()) {
+			CommandDescriptor step = this.steps.get(Integer.parseInt(matcher.group(1)));
+			this.results.put(step, new Step(matcher.group(2), matcher.group(3)));
+		}
+	}
+
+	/**
+	 * @return the lines sent to the shell: a here-document writing the script
+	 *         to a temporary file, followed by a command sourcing it
+	 */
+	private String script() {
+		String delimiter = "AMELIA-" + this.id;
+		StringBuilder sb = new StringBuilder();
+		sb.append("__amelia_script=$(mktemp) && cat > \"$__amelia_script\" <<'"
+				+ delimiter + "'\n");
+		sb.append("__amelia_ok=0\n");
+		for (int i = 0; i < this.steps.size(); i++) {
+			CommandDescriptor step = this.steps.get(i);
+			sb.append("if [ \"$__amelia_ok\" = 0 ]; then\n");
+			sb.append("echo \"--AM\"\"ELIA-STEP:" + this.id + ":" + i + "--\"\n");
+			sb.append("__amelia_out=$(mktemp)\n");
+			sb.append("{\n" + step.toCommandString() + "\n} > \"$__amelia_out\" 2>&1\n");
+			sb.append("__amelia_status=$?\n");
+			sb.append("cat \"$__amelia_out\"\n");
+			if (step.errorTexts() != null && step.errorTexts().length > 0) {
+				sb.append("if grep -qF");
+				for (String errorText : step.errorTexts())
+					sb.append(" -e " + ShellUtils.quote(errorText));
+				sb.append(" \"$__amelia_out\"; then __amelia_status=" + ERROR + "; fi\n");
+			}
+			sb.append("rm -f \"$__amelia_out\"\n");
+			sb.append("echo \"--AM\"\"ELIA-STEP-END:" + this.id + ":" + i
+					+ ":$__amelia_status--\"\n");
+			sb.append("[ \"$__amelia_status\" = 0 ] || __amelia_ok=1\n");
+			sb.append("fi\n");
+		}
+		sb.append("unset __amelia_ok __amelia_out __amelia_status\n");
+		sb.append(delimiter + "\n");
+		sb.append(". \"$__amelia_script\"; rm -f \"$__amelia_script\"; "
+				+ "echo \"--AM\"\"ELIA-BATCH-END:" + this.id + "--\"\n");
+		return sb.toString();
+	}
+
+	private String endRegexp() {
+		return "\\-\\-AMELIA\\-BATCH\\-END:" + this.id.replace("-", "\\-") + "\\-\\-";
+	}
+
+	/**
+	 * @return the commands executed by this script
+	 */
+	public List<CommandDescriptor> steps() {
+		return this.steps;
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import static net.sf.expectit.filter.Filters.removeColors;
+import static net.sf.expectit.filter.Filters.removeNonPrintable;
+import static net.sf.expectit.matcher.Matchers.regexp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.amelia.dsl.lib.util.ShellUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import net.sf.expectit.Expect;
+import net.sf.expectit.ExpectBuilder;
+import net.sf.expectit.Result;
+
+/**
+ * An interactive shell channel opened on an SSH session, configured with the
+ * Amelia prompt.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ShellChannel {
+
+	private final int id;
+
+	private final Channel channel;
+
+	private final Expect expect;
+
+	/**
+	 * A runtime representation of this channel.
+	 */
+	private final SSHHandler.OutputLog outputLog;
+
+	/**
+	 * The working directory last set in this channel by the handler, if any
+	 */
+	private String workingDirectory;
+
+	/**
+	 * The process identifier of the remote shell
+	 */
+	private int pid;
+
+	/**
+	 * The logger
+	 */
+	private final static Logger logger = LogManager.getLogger(ShellChannel.class);
+
+	/**
+	 * Opens a shell channel on the given session, and changes its prompt to
+	 * the Amelia prompt.
+	 * 
+	 * @param id
+	 *            The identifier of this channel within its session
+	 * @param session
+	 *            The (connected) SSH session
+	 * @param sessionLog
+	 *            The appendable to echo this channel's input and output
+	 * @param connectionTimeout
+	 *            The timeout to connect the channel
+	 * @param executionTimeout
+	 *            The default timeout to expect for outputs
+	 * @throws JSchException
+	 *             If the channel cannot be opened
+	 * @throws IOException
+	 *             If there is an error configuring the shell
+	 */
+	public ShellChannel(final int id, final Session session,
+			final Appendable sessionLog, final int connectionTimeout,
+			final int executionTimeout) throws JSchException, IOException {
+		this.id = id;
+		this.channel = session.openChannel("shell");
+		this.channel.connect(connectionTimeout);
+		this.outputLog = new SSHHandler.OutputLog();
+		this.outputLog.echoTo(sessionLog);
+		this.expect = new ExpectBuilder()
+			.withOutput(this.channel.getOutputStream())
+			.withInputs(this.channel.getInputStream(),
+				this.channel.getExtInputStream())
+			.withEchoInput(this.outputLog)
+			.withEchoOutput(this.outputLog)
+			.withInputFilters(removeColors(), removeNonPrintable())
+			.withExceptionOnFailure()
+			.withTimeout(executionTimeout, TimeUnit.MILLISECONDS)
+			.build();
+		configure();
+	}
+
+	private void configure() throws IOException {
+		String prompt = ShellUtils.ameliaPromptRegexp();
+		String initialPrompt = "\\$|#";
+
+		this.expect.expect(regexp(initialPrompt));
+
+		// Switch off echo
+		this.expect.sendLine("stty -echo");
+		this.expect.expect(regexp(initialPrompt));
+
+		// Query the current shell
+		this.expect.sendLine(ShellUtils.currentShellCommand());
+		Result result = this.expect.expect(regexp(initialPrompt));
+
+		String shell = result.getBefore().split("\n")[0].trim();
+
+		// Query the process identifier of the shell
+		this.expect.sendLine("echo $$");
+		result = this.expect.expect(regexp(initialPrompt));
+		String pid = result.getBefore().split("\n")[0].trim();
+		this.pid = pid.matches("[0-9]+") ? Integer.parseInt(pid) : -1;
+
+		if (!shell.matches("bash|zsh")) {
+			RuntimeException e = new RuntimeException(
+					"Shell not supported: " + shell);
+			logger.error("Shell not supported: " + shell, e);
+			throw e;
+		}
+
+		// Change shell prompt to the Amelia prompt
+		this.expect.sendLine(ShellUtils.ameliaPromptFormat(shell));
+		this.expect.expect(regexp(prompt));
+	}
+
+	public void close() throws IOException {
+		this.expect.close();
+		this.outputLog.close();
+		if (this.channel.isConnected())
+			this.channel.disconnect();
+	}
+
+	/**
+	 * Interrupts the command in execution, if any, as if Ctrl-C was typed in
+	 * the terminal.
+	 * 
+	 * @throws IOException
+	 *             If the interrupt cannot be sent
+	 */
+	public void interrupt() throws IOException {
+		this.expect.sendBytes(new byte[] { 3 });
+	}
+
+	public boolean isConnected() {
+		return this.channel.isConnected();
+	}
+
+	public int id() {
+		return this.id;
+	}
+
+	/**
+	 * @return the process identifier of the remote shell, or -1 if it is
+	 *         unknown
+	 */
+	public int pid() {
+		return this.pid;
+	}
+
+	public String workingDirectory() {
+		return this.workingDirectory;
+	}
+
+	public void workingDirectory(final String workingDirectory) {
+		this.workingDirectory = workingDirectory;
+	}
+
+	public Expect expect() {
+		return this.expect;
+	}
+
+	/**
+	 * @return a runtime representation of this channel
+	 */
+	public SSHHandler.OutputLog outputLog() {
+		return this.outputLog;
+	}
+
+}
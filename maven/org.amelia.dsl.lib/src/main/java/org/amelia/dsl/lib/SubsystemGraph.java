@@ -23,8 +23,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.Callable;
@@ -49,7 +48,7 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 	private static Logger logger = LogManager.getLogger(SubsystemGraph.class);
 
 	public class DependencyThread extends Thread
-			implements Observer, Comparable<DependencyThread> {
+			implements Comparable<DependencyThread> {
 
 		private final UUID internalId;
 		private final Subsystem subsystem;
@@ -59,6 +58,12 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 		private volatile boolean shutdown;
 		private final SingleThreadTaskQueue taskQueue;
 
+		/**
+		 * The threads waiting for this one to finish. Assigned before
+		 * starting the thread.
+		 */
+		private DependencyThread[] successors;
+
 		public DependencyThread(final Subsystem subsystem,
 				final List<Subsystem> dependencies,
 				final CountDownLatch doneSignal,
@@ -70,10 +75,7 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 			this.mainDoneSignal = doneSignal;
 			this.shutdown = false;
 			this.taskQueue = taskQueue;
-
-			// Make this thread observe the corresponding dependencies
-			for (Subsystem dependency : this.dependencies)
-				dependency.deployment().addObserver(this);
+			this.successors = new DependencyThread[0];
 		}
 
 		public void run() {
@@ -92,6 +94,8 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 							return null;
 						}
 					});
+					for (DependencyThread successor : this.successors)
+						successor.doneSignal.countDown();
 					this.subsystem.deployment().setChanged();
 					this.subsystem.deployment().notifyObservers();
 				}
@@ -105,10 +109,6 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 			}
 		}
 
-		public synchronized void update(Observable o, Object arg) {
-			this.doneSignal.countDown();
-		}
-
 		public boolean equals(Object obj) {
 			if (this == obj)
 				return true;
@@ -123,7 +123,6 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 
 		public void shutdown() {
 			this.shutdown = true;
-			this.subsystem.deployment().deleteObserver(this);
 			while (this.doneSignal.getCount() > 0)
 				this.doneSignal.countDown();
 		}
@@ -210,12 +209,15 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 		Log.printBanner();
 		if (validate()) {
 			CountDownLatch doneSignal = new CountDownLatch(this.subsystems.size());
+			Map<Subsystem, DependencyThread> _threads = new HashMap<Subsystem, DependencyThread>();
 			for (Subsystem subsystem : this.subsystems) {
 				List<Subsystem> dependencies = get(subsystem);
 				DependencyThread thread = new DependencyThread(subsystem,
 						dependencies, doneSignal, this.taskQueue);
 				threads.add(thread);
+				_threads.put(subsystem, thread);
 			}
+			linkSuccessors(_threads);
 			Log.info("Resolving subsystems (" + this.subsystems.size() + ")");
 			long start = System.nanoTime();
 			for (DependencyThread thread : this.threads) {
@@ -242,6 +244,24 @@ public class SubsystemGraph extends HashMap<Subsystem, List<Subsystem>> {
 		return successful;
 	}
 	
+	/**
+	 * Assigns to each thread the threads of the subsystems depending on its
+	 * subsystem
+	 */
+	private void linkSuccessors(final Map<Subsystem, DependencyThread> threads) {
+		Map<Subsystem, List<DependencyThread>> successors = new HashMap<Subsystem, List<DependencyThread>>();
+		for (Subsystem subsystem : threads.keySet())
+			successors.put(subsystem, new ArrayList<DependencyThread>());
+		for (Subsystem subsystem : threads.keySet()) {
+			for (Subsystem dependency : get(subsystem))
+				successors.get(dependency).add(threads.get(subsystem));
+		}
+		for (Subsystem subsystem : threads.keySet()) {
+			threads.get(subsystem).successors = successors.get(subsystem)
+					.toArray(new DependencyThread[0]);
+		}
+	}
+
 	private Thread shutdownHook(final boolean stopExecutedComponents) {
 		Thread t = new Thread() {
 			@Override public void run() {
@@ -48,7 +48,10 @@ public class AssetBundle extends CommandDescriptor {
 			public Object call(Host host, String prompt, boolean quiet)
 				throws Exception {
 				try {
-					host.ftp().upload(that);
+					if (usesSFTP())
+						host.ssh().sftp().upload(that);
+					else
+						host.ftp().upload(that);
 					if (!quiet) Log.success(host, that.doneMessage());
 				} catch (Exception e) {
 					if (!quiet) Log.error(host, that.failMessage());
@@ -177,6 +180,14 @@ public class AssetBundle extends CommandDescriptor {
 		return sb.toString();
 	}
 
+	/**
+	 * @return whether bundles are transferred over the SSH connection
+	 *         (SFTP), rather than over an FTP connection
+	 */
+	public static boolean usesSFTP() {
+		return "sftp".equals(System.getProperty("amelia.file_transfer"));
+	}
+
 	public void setOverwrite(boolean overwrite) {
 		this.overwrite = overwrite;
 	}
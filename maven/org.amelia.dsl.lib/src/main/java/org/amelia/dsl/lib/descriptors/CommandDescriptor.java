@@ -18,17 +18,28 @@
  */
 package org.amelia.dsl.lib.descriptors;
 
+import static net.sf.expectit.matcher.Matchers.anyOf;
 import static net.sf.expectit.matcher.Matchers.regexp;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Observable;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.amelia.dsl.lib.CallableTask;
+import org.amelia.dsl.lib.ExecChannel;
+import org.amelia.dsl.lib.ReadinessProbe;
+import org.amelia.dsl.lib.SSHHandler;
+import org.amelia.dsl.lib.ScriptBatch;
 import org.amelia.dsl.lib.util.Arrays;
+import org.amelia.dsl.lib.util.ErrorTextMatcher;
 import org.amelia.dsl.lib.util.Log;
 import org.amelia.dsl.lib.util.ShellUtils;
 import org.amelia.dsl.lib.util.Strings;
@@ -38,6 +49,9 @@ import com.google.common.collect.Iterables;
 
 import net.sf.expectit.Expect;
 import net.sf.expectit.ExpectIOException;
+import net.sf.expectit.MultiResult;
+import net.sf.expectit.Result;
+import net.sf.expectit.matcher.Matcher;
 
 /**
  * @author Miguel Jiménez - Initial contribution and API
@@ -55,6 +69,10 @@ public class CommandDescriptor extends Observable {
 		public String successMessage;
 		public CallableTask<Object> callable;
 		public boolean execution;
+		public List<ReadinessProbe> readinessProbes;
+		public long expectedDuration;
+		private ErrorTextMatcher errorTextMatcher;
+		private CallableTask<Object> defaultCallable;
 
 		public Builder() {
 			this.command = "";
@@ -65,6 +83,8 @@ public class CommandDescriptor extends Observable {
 			this.errorMessage = "";
 			this.successMessage = "";
 			this.execution = false;
+			this.readinessProbes = new ArrayList<ReadinessProbe>();
+			this.expectedDuration = -1;
 		}
 		
 		public Builder withCommand(final String command) {
@@ -117,11 +137,33 @@ public class CommandDescriptor extends Observable {
 			return this;
 		}	
 
+		/**
+		 * Adds probes deciding when the component started by this (execution)
+		 * descriptor is ready. Without probes, dependent descriptors are
+		 * released after a fixed delay.
+		 */
+		public Builder withReadinessProbe(ReadinessProbe... probes) {
+			Collections.addAll(this.readinessProbes, probes);
+			return this;
+		}
+
+		/**
+		 * Declares how long the command usually takes (in milliseconds).
+		 * Schedulers use it to prioritize the longest paths of the graph.
+		 */
+		public Builder withExpectedDuration(final long expectedDuration) {
+			this.expectedDuration = expectedDuration;
+			return this;
+		}
+
 		public CommandDescriptor build() {
 			if (this.errorMessage == null || this.errorMessage.isEmpty())
 				this.errorMessage = this.command;
-			if (this.callable == null)
+			if (this.callable == null) {
 				this.callable = defaultCallableTask();
+				this.defaultCallable = this.callable;
+			}
+			this.errorTextMatcher = new ErrorTextMatcher(this.errorTexts);
 			return new CommandDescriptor(this);
 		}
 		
@@ -129,72 +171,245 @@ public class CommandDescriptor extends Observable {
 			return new CallableTask<Object>() {
 				@Override public String call(Host host, String prompt, boolean quiet)
 					throws Exception {
-					String output = new String();
 					Expect expect = host.ssh().expect();
 					if (timeout == -1)
 						expect = expect.withInfiniteTimeout();
 					else if (timeout > 0)
 						expect = expect.withTimeout(timeout, TimeUnit.MILLISECONDS);
-					// Execute the command and expect for a successful execution
 					String _command = command + " " + Arrays.join(arguments, " ");
-					try {
-						// There is only one command being executed in this connection
-						expect.sendLine(_command);
-						int from = host.ssh().outputLog().logs().size();
-						String response = expect.expect(regexp(releaseRegexp)).getBefore();
-
-						// Make sure to receive the output: send an empty line to wait while
-						// expect finishes feeding the appendable
-						expect.sendLine();
-						expect.expect(regexp(prompt));
-						
-						int to = host.ssh().outputLog().logs().size() - 1;
-						if (from <= to) {
-							for (CharSequence csq: host.ssh().outputLog().logs().subList(from, to))
-								output += csq;
-						}
-						if (Strings.containsAnyOf(response, errorTexts)) {
-							if(!quiet) Log.error(host, errorMessage);
-							throw new RuntimeException(errorMessage);
-						} else {
-							// Check non-zero error code
-							expect.sendLine("echo --$?--");
-							String returnCode = expect.expect(regexp("\\-\\-([0-9]+)\\-\\-")).group(1);
-							if (!returnCode.equals("0"))
-								throw new RuntimeException(
-									String.format(
-										"The command '%s...' returned a non-zero error code (%s)",
-										_command.substring(0, Math.min(_command.length(), 10)).trim(),
-										returnCode
-									)
-								);
-							if(!quiet)
-								Log.success(
-									host,
-									successMessage == null || successMessage.isEmpty()
-										? _command : successMessage
-								);
-						}
-					} catch(ExpectIOException e) {
-						String response = e.getInputBuffer();
-						if (Strings.containsAnyOf(response, errorTexts)) {
-							if(!quiet) Log.error(host, errorMessage);
-							throw new Exception(errorMessage);
-						} else {
-							String regexp = releaseRegexp.equals(prompt)
-									? "the amelia prompt" : String.format("\"%s\"", releaseRegexp);
-							String message = String.format(
-								"Operation timeout waiting for %s in host %s",
-								regexp,
-								host
-							);
-							throw new RuntimeException(message);
-						}
+					// Exec channels and the sentinel mark the end of the
+					// command, therefore they cannot be used when waiting for
+					// a custom release regexp
+					boolean release = !releaseRegexp.equals(prompt);
+					boolean exec = "exec".equals(
+							System.getProperty("amelia.transport"));
+					boolean sentinel = "sentinel".equals(
+							System.getProperty("amelia.execution_protocol"));
+					if (!exec && !release) {
+						ScriptBatch.Step step = host.ssh().batchedStep(_command,
+								expect, prompt);
+						if (step != null)
+							return completeBatchedStep(step, _command, host, quiet);
 					}
-					return output;
+					if (exec && !release)
+						return executeOnExecChannel(_command, host, quiet);
+					else if (sentinel && !release)
+						return executeWithSentinel(expect, _command, host, prompt, quiet);
+					else
+						return executeInteractively(expect, _command, host, prompt, quiet);
 				}
 			};
 		}
+
+		/**
+		 * Executes the command, and then sends an empty line and an echo
+		 * command to obtain the output and the exit code, respectively.
+		 */
+		protected String executeInteractively(final Expect expect,
+				final String _command, final Host host, final String prompt,
+				final boolean quiet) throws Exception {
+			String output = new String();
+			// Execute the command and expect for a successful execution
+			try {
+				// There is only one command being executed in this connection
+				SSHHandler.OutputLog log = host.ssh().outputLog();
+				expect.sendLine(_command);
+				long from = log.chunks();
+				String response = expectUnlessError(expect,
+						regexp(releaseRegexp), host, prompt, quiet).getBefore();
+
+				// Make sure to receive the output: send an empty line to wait while
+				// expect finishes feeding the appendable
+				expect.sendLine();
+				expect.expect(regexp(prompt));
+				
+				long to = log.chunks() - 1;
+				if (from <= to)
+					output = log.slice(log.offsetOf(from), log.offsetOf(to));
+				if (Strings.containsAnyOf(response, errorTexts)) {
+					if(!quiet) Log.error(host, errorMessage);
+					throw new RuntimeException(errorMessage);
+				} else {
+					// Check non-zero error code
+					expect.sendLine("echo --$?--");
+					String returnCode = expect.expect(regexp("\\-\\-([0-9]+)\\-\\-")).group(1);
+					checkReturnCode(_command, returnCode);
+					if(!quiet)
+						Log.success(
+							host,
+							successMessage == null || successMessage.isEmpty()
+								? _command : successMessage
+						);
+				}
+			} catch(ExpectIOException e) {
+				handleTimeout(e, host, prompt, quiet);
+			}
+			return output;
+		}
+
+		/**
+		 * Executes the command wrapped between two markers, the last one
+		 * carrying the exit code. This way, the output and the exit code are
+		 * obtained in a single round trip.
+		 */
+		protected String executeWithSentinel(final Expect expect,
+				final String _command, final Host host, final String prompt,
+				final boolean quiet) throws Exception {
+			String output = new String();
+			String id = UUID.randomUUID().toString();
+			try {
+				expect.sendLine(ShellUtils.sentinelCommand(_command, id));
+				Result result = expectUnlessError(expect,
+						regexp(ShellUtils.sentinelEndRegexp(id)), host, prompt, quiet);
+				String returnCode = result.group(1);
+				// Consume the prompt printed after the command
+				expect.expect(regexp(prompt));
+
+				String response = result.getBefore();
+				String begin = ShellUtils.sentinelBegin(id);
+				int start = response.indexOf(begin);
+				output = start == -1 ? response
+						: response.substring(start + begin.length());
+				output = output.replaceFirst("^\r?\n", "");
+				if (Strings.containsAnyOf(output, errorTexts)) {
+					if(!quiet) Log.error(host, errorMessage);
+					throw new RuntimeException(errorMessage);
+				}
+				checkReturnCode(_command, returnCode);
+				if(!quiet)
+					Log.success(
+						host,
+						successMessage == null || successMessage.isEmpty()
+							? _command : successMessage
+					);
+			} catch(ExpectIOException e) {
+				handleTimeout(e, host, prompt, quiet);
+			}
+			return output;
+		}
+
+		/**
+		 * Executes the command on a non-interactive exec channel. Changes of
+		 * working directory are recorded in the host's handler, so that the
+		 * following commands are executed within the new directory.
+		 */
+		protected String executeOnExecChannel(final String _command,
+				final Host host, final boolean quiet) throws Exception {
+			boolean cd = command.equals("cd");
+			// Resolve the new directory in the host
+			String __command = cd ? _command + " && pwd" : _command;
+			ExecChannel channel;
+			try {
+				channel = host.ssh().exec(__command, timeout);
+			} catch (TimeoutException e) {
+				throw new RuntimeException(
+					String.format(
+						"Operation timeout waiting for the command '%s...' in host %s",
+						_command.substring(0, Math.min(_command.length(), 10)).trim(),
+						host
+					)
+				);
+			}
+			String output = channel.stdout();
+			if (Strings.containsAnyOf(output + channel.stderr(), errorTexts)) {
+				if(!quiet) Log.error(host, errorMessage);
+				throw new RuntimeException(errorMessage);
+			}
+			checkReturnCode(_command, String.valueOf(channel.exitStatus()));
+			if (cd)
+				host.ssh().workingDirectory(output.trim());
+			if(!quiet)
+				Log.success(
+					host,
+					successMessage == null || successMessage.isEmpty()
+						? _command : successMessage
+				);
+			return output;
+		}
+
+		/**
+		 * Expects the given matcher while scanning the output for the error
+		 * texts. If an error text is received first, the command is
+		 * interrupted (Ctrl-C) and the error is raised without waiting for
+		 * the command to finish.
+		 */
+		protected Result expectUnlessError(final Expect expect,
+				final Matcher<Result> matcher, final Host host,
+				final String prompt, final boolean quiet) throws IOException {
+			if (errorTextMatcher == null || errorTextMatcher.isEmpty()
+					|| !Boolean.getBoolean("amelia.fail_fast"))
+				return expect.expect(matcher);
+			MultiResult results = expect.expect(
+					anyOf(matcher, errorTextMatcher.matcher()));
+			Result result = results.getResults().get(0);
+			if (result.isSuccessful())
+				return result;
+			expect.sendBytes(new byte[] { 3 });
+			try {
+				// Wait briefly for the prompt, regardless of the execution timeout
+				long gracePeriod = Math.max(1, Long.parseLong(System.getProperty(
+						"amelia.cancellation_grace_period", "2000")));
+				expect.withTimeout(gracePeriod, TimeUnit.MILLISECONDS)
+					.expect(regexp(prompt));
+			} catch (ExpectIOException e) {
+				if(!quiet)
+					Log.warning(host, "The command did not stop after being interrupted");
+			}
+			if(!quiet) Log.error(host, errorMessage);
+			throw new RuntimeException(errorMessage);
+		}
+
+		/**
+		 * Checks the result of the command executed within a script, as if
+		 * it had been executed on its own.
+		 */
+		protected String completeBatchedStep(final ScriptBatch.Step step,
+				final String _command, final Host host, final boolean quiet) {
+			String output = step.output();
+			if (ScriptBatch.ERROR.equals(step.status())
+					|| Strings.containsAnyOf(output, errorTexts)) {
+				if(!quiet) Log.error(host, errorMessage);
+				throw new RuntimeException(errorMessage);
+			}
+			checkReturnCode(_command, step.status());
+			if(!quiet)
+				Log.success(
+					host,
+					successMessage == null || successMessage.isEmpty()
+						? _command : successMessage
+				);
+			return output;
+		}
+
+		private void checkReturnCode(final String _command,
+				final String returnCode) {
+			if (!returnCode.equals("0"))
+				throw new RuntimeException(
+					String.format(
+						"The command '%s...' returned a non-zero error code (%s)",
+						_command.substring(0, Math.min(_command.length(), 10)).trim(),
+						returnCode
+					)
+				);
+		}
+
+		private void handleTimeout(final ExpectIOException e, final Host host,
+				final String prompt, final boolean quiet) throws Exception {
+			String response = e.getInputBuffer();
+			if (Strings.containsAnyOf(response, errorTexts)) {
+				if(!quiet) Log.error(host, errorMessage);
+				throw new Exception(errorMessage);
+			} else {
+				String regexp = releaseRegexp.equals(prompt)
+						? "the amelia prompt" : String.format("\"%s\"", releaseRegexp);
+				String message = String.format(
+					"Operation timeout waiting for %s in host %s",
+					regexp,
+					host
+				);
+				throw new RuntimeException(message);
+			}
+		}
 	}
 
 	protected final UUID internalId;
@@ -205,8 +420,12 @@ public class CommandDescriptor extends Observable {
 	protected final String successMessage;
 	protected final long timeout;
 	protected CallableTask<Object> callable;
+	private final CallableTask<Object> defaultCallable;
 	protected final boolean execution;
+	protected final List<ReadinessProbe> readinessProbes;
+	protected final long expectedDuration;
 	private final List<CommandDescriptor> dependencies;
+	private final Set<CommandDescriptor> sameHostDependencies;
 	private final List<Host> hosts;
 
 	/**
@@ -226,8 +445,12 @@ public class CommandDescriptor extends Observable {
 		this.errorMessage = builder.errorMessage;
 		this.successMessage = builder.successMessage;
 		this.callable = builder.callable;
+		this.defaultCallable = builder.defaultCallable;
 		this.execution = builder.execution;
+		this.readinessProbes = new ArrayList<ReadinessProbe>(builder.readinessProbes);
+		this.expectedDuration = builder.expectedDuration;
 		this.dependencies = new ArrayList<CommandDescriptor>();
+		this.sameHostDependencies = new HashSet<CommandDescriptor>();
 		this.hosts = new ArrayList<Host>();
 		this.executionConditions = new ArrayList<Supplier<Boolean>>();
 	}
@@ -253,8 +476,14 @@ public class CommandDescriptor extends Observable {
 				.withTimeout(timeout());
 		if (isExecution())
 			builder.isExecution();
+		builder.withReadinessProbe(readinessProbes().toArray(new ReadinessProbe[0]));
 		CommandDescriptor result = builder.build();
-		result.dependsOn(dependencies().toArray(new CommandDescriptor[0]));
+		for (CommandDescriptor dependency : dependencies()) {
+			if (isSameHostDependency(dependency))
+				result.dependsOnSameHost(dependency);
+			else
+				result.dependsOn(dependency);
+		}
 		result.runsOn(hosts().toArray(new Host[0]));
 		return result;
 	}
@@ -264,8 +493,16 @@ public class CommandDescriptor extends Observable {
 				|| Strings.containsAnyOf(response, this.errorTexts);
 	}
 
+	/**
+	 * Marks this command as done in the given host, and notifies the
+	 * observers (if any). Schedulers call it without holding any lock.
+	 * 
+	 * @param host
+	 *            The host in which the command was executed
+	 */
 	public void done(Host host) {
 		setChanged();
+		notifyObservers(host);
 	}
 
 	public String doneMessage() {
@@ -300,6 +537,38 @@ public class CommandDescriptor extends Observable {
 		return dependsOn(
 				Iterables.toArray(dependencies, CommandDescriptor.class));
 	}
+
+	/**
+	 * Adds dependencies that are only awaited in the host where this command
+	 * is executed. That is, the execution of this command in a host waits
+	 * for the execution of each dependency in the same host, instead of
+	 * waiting for its execution in all of its hosts. If a dependency is not
+	 * executed in a particular host, the command waits for all of its hosts.
+	 * 
+	 * @param dependencies
+	 *            The commands on which this command depends
+	 * @return whether all of the dependencies were added
+	 */
+	public boolean dependsOnSameHost(CommandDescriptor... dependencies) {
+		boolean all = dependsOn(dependencies);
+		for (CommandDescriptor descriptor : dependencies)
+			this.sameHostDependencies.add(descriptor);
+		return all;
+	}
+
+	public boolean dependsOnSameHost(Iterable<CommandDescriptor> dependencies) {
+		return dependsOnSameHost(
+				Iterables.toArray(dependencies, CommandDescriptor.class));
+	}
+
+	/**
+	 * @param dependency
+	 *            One of the dependencies of this command
+	 * @return whether the given dependency is only awaited in the same host
+	 */
+	public boolean isSameHostDependency(CommandDescriptor dependency) {
+		return this.sameHostDependencies.contains(dependency);
+	}
 	
 	public boolean runsOn(Host... hosts) {
 		boolean all = true;
@@ -354,6 +623,13 @@ public class CommandDescriptor extends Observable {
 		});
 	}
 
+	/**
+	 * @return whether this command has execution conditions
+	 */
+	public boolean hasExecutionConditions() {
+		return !this.executionConditions.isEmpty();
+	}
+
 	/**
 	 * Determines whether this command should be executed.
 	 * @return a boolean value
@@ -435,8 +711,29 @@ public class CommandDescriptor extends Observable {
 	public CallableTask<Object> callable() {
 		return this.callable;
 	}
+
+	/**
+	 * @return whether this command is executed by the default callable task,
+	 *         that is, by sending its command to the shell
+	 */
+	public boolean hasDefaultCallable() {
+		return this.defaultCallable != null
+				&& this.callable == this.defaultCallable;
+	}
 	
 	public boolean isExecution() {
 		return this.execution;
 	}
+
+	public List<ReadinessProbe> readinessProbes() {
+		return this.readinessProbes;
+	}
+
+	/**
+	 * @return the declared duration of this command (in milliseconds), or -1
+	 *         if it is unknown
+	 */
+	public long expectedDuration() {
+		return this.expectedDuration;
+	}
 }
@@ -85,12 +85,14 @@ public class Host implements Comparable<Host> {
 			this.ssh = new SSHHandler(this, subsystem);
 
 		if (!this.ssh.isConnected()) {
+			long start = System.currentTimeMillis();
 			this.ssh.setup();
 			this.ssh.start();
 			this.ssh.join();
 
 			if (this.ssh.isConnected()) {
-				Log.success(this, "Connection established");
+				long time = System.currentTimeMillis() - start;
+				Log.success(this, "Connection established (" + time + " ms)");
 				opened = true;
 			}
 		} else {
@@ -115,12 +117,14 @@ public class Host implements Comparable<Host> {
 			this.ftp = new FTPHandler(this);
 
 		if (!this.ftp.isConnected()) {
+			long start = System.currentTimeMillis();
 			this.ftp.setup();
 			this.ftp.start();
 			this.ftp.join();
 
 			if (this.ftp.client().isConnected()) {
-				Log.success(this, "Connection established");
+				long time = System.currentTimeMillis() - start;
+				Log.success(this, "Connection established (" + time + " ms)");
 				opened = true;
 			}
 		} else {
@@ -139,4 +139,60 @@ public class CommandExtensions {
             }).build();
     }
 
+    /**
+     * Caches the output of the given command. While the entry is valid, the
+     * command is not executed and its recorded output is returned instead.
+     * Only textual results are cached: if the command's callable returns
+     * any other value, it is executed every time.
+     * @param command the command to execute
+     * @param ttl the time (in milliseconds) after which the output expires,
+     *        or -1 for outputs that do not expire
+     * @param guard a command, executed in the host before using the cached
+     *        output, that exits successfully while the output is valid (or
+     *        {@code null})
+     * @param fingerprint a fingerprint of the command's inputs, for example,
+     *        {@link ResultCache#fingerprint(java.io.File...)}
+     * @return a command wrapping the original command
+     */
+    public static CommandDescriptor cached(final CommandDescriptor command,
+        final long ttl, final String guard, final String fingerprint) {
+        return new CommandDescriptor.Builder()
+            .withSuccessMessage(command.doneMessage())
+            .withErrorMessage(command.errorMessage())
+            .withCommand(command.toCommandString())
+            .withCallable(new CallableTask<Object>() {
+                @Override
+                public Object call(Host host, String prompt, boolean quiet)
+                	throws Exception {
+                	ResultCache cache = ResultCache.getInstance();
+                	String key = cache.key(host, command.toCommandString(),
+                		fingerprint == null ? "" : fingerprint);
+                	String output = cache.get(key, host, guard);
+                	if (output != null) {
+                		if (!quiet)
+                			Log.info(host, String.format("cached: %s",
+                				command.toCommandString()));
+                		return output;
+                	}
+                	Object result = command.callable().call(host, prompt, quiet);
+                	// A cached result is returned as a string
+                	if (result instanceof CharSequence)
+                		cache.put(key, result.toString(), ttl);
+                	else if (!quiet)
+                		Log.warning(host, String.format("not cached (not a string): %s",
+                			command.toCommandString()));
+                	return result;
+                }
+            }).build();
+    }
+
+    /**
+     * Caches the output of the given command.
+     * @see #cached(CommandDescriptor, long, String, String)
+     */
+    public static CommandDescriptor cached(final CommandDescriptor command,
+        final long ttl) {
+        return cached(command, ttl, null, null);
+    }
+
 }
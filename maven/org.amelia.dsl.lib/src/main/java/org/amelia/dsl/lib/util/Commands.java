@@ -27,8 +27,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.rmi.registry.Registry;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +39,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.amelia.dsl.lib.CallableTask;
+import org.amelia.dsl.lib.ReadinessProbe;
 import org.amelia.dsl.lib.descriptors.AssetBundle;
 import org.amelia.dsl.lib.descriptors.CommandDescriptor;
 import org.amelia.dsl.lib.descriptors.Host;
@@ -81,12 +84,16 @@ public class Commands {
 		public String releaseRegexp;
 		public String successMessage;
 		public String[] errorTexts;
+		public List<ReadinessProbe> readinessProbes;
+		public List<String> rmiServices;
 
 		public RunBuilder() {
 			this.port = -1;
 			this.timeout = 0;
 			this.releaseRegexp = "Press Ctrl\\+C to quit\\.\\.\\.|Call done!";
 			this.errorTexts = new String[0];
+			this.readinessProbes = new ArrayList<ReadinessProbe>();
+			this.rmiServices = new ArrayList<String>();
 		}
 
 		public RunBuilder withComposite(final String compositeName) {
@@ -156,6 +163,38 @@ public class Commands {
 			return this;
 		}
 
+		public RunBuilder withReadinessProbe(final ReadinessProbe... probes) {
+			Collections.addAll(this.readinessProbes, probes);
+			return this;
+		}
+
+		/**
+		 * Releases dependent descriptors once the given port accepts
+		 * connections
+		 */
+		public RunBuilder waitForPort(final int port) {
+			return withReadinessProbe(Probes.port(port));
+		}
+
+		/**
+		 * Releases dependent descriptors once the output of the execution
+		 * matches the given regular expression
+		 */
+		public RunBuilder waitForOutput(final String regexp) {
+			return withReadinessProbe(Probes.output(regexp));
+		}
+
+		/**
+		 * Releases dependent descriptors once the given name is bound in the
+		 * RMI registry of the execution (the port set with
+		 * {@link #withPort(int)}, or 1099 by default). The port is resolved
+		 * when the descriptor is built.
+		 */
+		public RunBuilder waitForRmiService(final String name) {
+			this.rmiServices.add(name);
+			return this;
+		}
+
 		/**
 		 * @return a {@link CommandDescriptor} with the necessary configuration
 		 *         to run the given composite
@@ -180,6 +219,11 @@ public class Commands {
 			if (this.arguments != null)
 				arguments.add("-p " + Arrays.join(this.arguments, " "));
 
+			List<ReadinessProbe> probes = new ArrayList<ReadinessProbe>(this.readinessProbes);
+			int registryPort = this.port == -1 ? Registry.REGISTRY_PORT : this.port;
+			for (String name : this.rmiServices)
+				probes.add(Probes.rmi(registryPort, name));
+
 			CommandDescriptor run = new CommandDescriptor.Builder()
 					.withCallable(callableTask(arguments))
 					.withCommand("frascati")
@@ -188,6 +232,7 @@ public class Commands {
 					.withSuccessMessage(this.successMessage)
 					.withErrorText(this.errorTexts)
 					.withTimeout(this.timeout)
+					.withReadinessProbe(probes.toArray(new ReadinessProbe[0]))
 					.isExecution()
 					.build();
 			return run;
@@ -67,12 +67,72 @@ public class Configuration {
 				config.put("known_hosts", home + "/.ssh/known_hosts");
 			if (!config.containsKey("connection_timeout"))
 				config.put("connection_timeout", "10000"); // 0 for no timeout
+			if (!config.containsKey("connection_workers"))
+				config.put("connection_workers", "16");
+			if (!config.containsKey("connection_deadline"))
+				config.put("connection_deadline", "0"); // 0 for no deadline
 			if (!config.containsKey("execution_timeout"))
 				config.put("execution_timeout", "15000"); // -1 for no timeout
+			if (!config.containsKey("fail_fast"))
+				config.put("fail_fast", "true"); // interrupt commands printing an error text
+			if (!config.containsKey("cancellation_grace_period"))
+				config.put("cancellation_grace_period", "2000");
+			if (!config.containsKey("execution_protocol"))
+				config.put("execution_protocol", "interactive"); // or sentinel
+			if (!config.containsKey("cache_directory"))
+				config.put("cache_directory", "cache");
+			if (!config.containsKey("cache_max_entries"))
+				config.put("cache_max_entries", "1000");
+			if (!config.containsKey("journal"))
+				config.put("journal", "false"); // record completed tasks, to resume
+			if (!config.containsKey("resume"))
+				config.put("resume", "false");
+			if (!config.containsKey("readiness_timeout"))
+				config.put("readiness_timeout", "60000");
+			if (!config.containsKey("transport"))
+				config.put("transport", "shell"); // or exec
+			if (!config.containsKey("output_log_capacity"))
+				config.put("output_log_capacity", "1048576"); // characters per channel
+			if (!config.containsKey("output_log_spill"))
+				config.put("output_log_spill", "false");
+			if (!config.containsKey("session_log_compress"))
+				config.put("session_log_compress", "false");
+			if (!config.containsKey("session_log_max_size"))
+				config.put("session_log_max_size", "0"); // characters, 0 for no rotation
+			if (!config.containsKey("ftp_sessions"))
+				config.put("ftp_sessions", "1"); // per host
+			if (!config.containsKey("file_transfer"))
+				config.put("file_transfer", "ftp"); // or sftp
+			if (!config.containsKey("sftp_channels"))
+				config.put("sftp_channels", "4"); // per host
+			if (!config.containsKey("directory_transfer"))
+				config.put("directory_transfer", "files"); // or archive (requires sftp)
+			if (!config.containsKey("delta_transfer"))
+				config.put("delta_transfer", "false"); // requires sftp
+			if (!config.containsKey("delta_block_size"))
+				config.put("delta_block_size", "8192");
+			if (!config.containsKey("sync_uploads"))
+				config.put("sync_uploads", "false"); // upload only changed files of directories
+			if (!config.containsKey("shared_files"))
+				config.put("shared_files", "false"); // map uploaded files once
 			if (!config.containsKey("color_output"))
 				config.put("color_output", "true");
+			if (!config.containsKey("async_logging"))
+				config.put("async_logging", "false");
+			if (!config.containsKey("log_buffer_size"))
+				config.put("log_buffer_size", "8192"); // messages
 			if (!config.containsKey("debug_mode"))
 				config.put("debug_mode", "false");
+			if (!config.containsKey("scheduler"))
+				config.put("scheduler", "threads"); // threads or ready_queue
+			if (!config.containsKey("scheduler_policy"))
+				config.put("scheduler_policy", "fifo"); // fifo or critical_path
+			if (!config.containsKey("scheduler_workers"))
+				config.put("scheduler_workers", "0"); // 0 for hosts * max_channels
+			if (!config.containsKey("rule_batching"))
+				config.put("rule_batching", "false"); // consecutive commands as one script
+			if (!config.containsKey("max_channels"))
+				config.put("max_channels", "1"); // shell channels per host
 
 			if (input != null) {
 				try {
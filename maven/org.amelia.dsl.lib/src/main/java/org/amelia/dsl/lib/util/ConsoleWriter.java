@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single thread printing the messages of {@link Log} to the standard
+ * output. Messages are published into a pre-allocated ring buffer without
+ * locking; producers only wait when the buffer is full. If the writer stops,
+ * producers print their messages themselves.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+class ConsoleWriter extends Thread {
+
+	/**
+	 * A slot of the ring buffer. The sequence indicates whether the slot can
+	 * be written by a producer (sequence == position) or read by the writer
+	 * (sequence == position + 1).
+	 */
+	private static final class Entry {
+		private volatile long sequence;
+		private String message;
+		private boolean plain;
+		private boolean showTime;
+		private long time;
+	}
+
+	private final Entry[] entries;
+
+	private final int mask;
+
+	/**
+	 * The next position to be claimed by a producer
+	 */
+	private final AtomicLong tail;
+
+	/**
+	 * The next position to be read by the writer
+	 */
+	private volatile long head;
+
+	/**
+	 * The number of messages printed so far
+	 */
+	private volatile long printed;
+
+	/**
+	 * Whether the writer is (about to be) parked
+	 */
+	private volatile boolean waiting;
+
+	/**
+	 * @param capacity
+	 *            The minimum number of messages the buffer can hold (rounded
+	 *            up to a power of two)
+	 */
+	public ConsoleWriter(final int capacity) {
+		super("amelia-console-writer");
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.entries = new Entry[size];
+		for (int i = 0; i < size; i++) {
+			this.entries[i] = new Entry();
+			this.entries[i].sequence = i;
+		}
+		this.mask = size - 1;
+		this.tail = new AtomicLong(0);
+		this.head = 0;
+		setDaemon(true);
+	}
+
+	/**
+	 * Publishes a message. If the buffer is full, waits until the writer
+	 * frees a slot.
+	 * 
+	 * @param message
+	 *            The message
+	 * @param plain
+	 *            Whether the message is printed as is, instead of being
+	 *            formatted by {@link Log}
+	 * @param showTime
+	 *            Whether the time is printed before the message
+	 * @param time
+	 *            The time of the message
+	 */
+	public void publish(final String message, final boolean plain,
+			final boolean showTime, final long time) {
+		while (true) {
+			long position = this.tail.get();
+			Entry entry = this.entries[(int) (position & this.mask)];
+			long sequence = entry.sequence;
+			if (sequence == position) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					entry.message = message;
+					entry.plain = plain;
+					entry.showTime = showTime;
+					entry.time = time;
+					entry.sequence = position + 1;
+					if (this.waiting)
+						LockSupport.unpark(this);
+					return;
+				}
+			} else if (sequence < position) {
+				// The buffer is full
+				if (!isAlive()) {
+					StringBuilder sb = new StringBuilder();
+					append(sb, message, plain, showTime, time);
+					synchronized (this) {
+						System.out.println(sb);
+					}
+					return;
+				}
+				Thread.yield();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		StringBuilder batch = new StringBuilder(8192);
+		while (true) {
+			long position = this.head;
+			Entry entry = this.entries[(int) (position & this.mask)];
+			if (entry.sequence == position + 1) {
+				append(batch, entry.message, entry.plain, entry.showTime,
+						entry.time);
+				batch.append(System.lineSeparator());
+				entry.message = null;
+				entry.sequence = position + this.entries.length;
+				this.head = position + 1;
+				if (batch.length() < 8192)
+					continue;
+			}
+			if (batch.length() > 0) {
+				System.out.print(batch);
+				System.out.flush();
+				batch.setLength(0);
+				this.printed = this.head;
+				continue;
+			}
+			this.waiting = true;
+			if (entry.sequence != position + 1)
+				LockSupport.parkNanos(this, 10000000L);
+			this.waiting = false;
+		}
+	}
+
+	/**
+	 * Formats a message. A message that cannot be formatted is printed as
+	 * is, so that it does not stop the writer.
+	 */
+	private static void append(final StringBuilder sb, final String message,
+			final boolean plain, final boolean showTime, final long time) {
+		int length = sb.length();
+		try {
+			if (plain)
+				sb.append(message);
+			else
+				Log.format(sb, message, showTime, time);
+		} catch (RuntimeException e) {
+			sb.setLength(length);
+			sb.append(message);
+		}
+	}
+
+	/**
+	 * Waits until all the published messages have been printed, the writer
+	 * stops, or the timeout expires.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait (in milliseconds)
+	 * @return whether all the published messages were printed
+	 */
+	public boolean flush(final long timeout) {
+		long position = this.tail.get();
+		long deadline = System.currentTimeMillis() + timeout;
+		while (this.printed < position) {
+			if (!isAlive() || System.currentTimeMillis() > deadline)
+				return false;
+			LockSupport.parkNanos(100000L);
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.sf.expectit.Result;
+import net.sf.expectit.matcher.Matcher;
+import net.sf.expectit.matcher.SimpleResult;
+
+/**
+ * An Aho-Corasick automaton recognizing a set of error texts. Each
+ * {@link #matcher()} keeps its own state, so that the output of a command is
+ * scanned incrementally, as it arrives, instead of searching every error text
+ * in the whole output once the command has finished.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ErrorTextMatcher {
+
+	/**
+	 * The characters labeling the transitions of each state, sorted
+	 */
+	private final char[][] keys;
+
+	/**
+	 * The target state of each transition
+	 */
+	private final int[][] targets;
+
+	/**
+	 * The state reached on a mismatch
+	 */
+	private final int[] failures;
+
+	/**
+	 * The index of the error text recognized at each state, or -1
+	 */
+	private final int[] outputs;
+
+	private final String[] errorTexts;
+
+	/**
+	 * @param errorTexts
+	 *            The texts to recognize (empty texts are ignored)
+	 */
+	public ErrorTextMatcher(final String... errorTexts) {
+		this.errorTexts = errorTexts;
+		// Build the trie
+		List<StringBuilder> _keys = new ArrayList<StringBuilder>();
+		List<List<Integer>> _targets = new ArrayList<List<Integer>>();
+		List<Integer> _outputs = new ArrayList<Integer>();
+		_keys.add(new StringBuilder());
+		_targets.add(new ArrayList<Integer>());
+		_outputs.add(-1);
+		for (int i = 0; i < errorTexts.length; i++) {
+			String text = errorTexts[i];
+			if (text == null || text.isEmpty())
+				continue;
+			int state = 0;
+			for (char c : text.toCharArray()) {
+				int j = _keys.get(state).indexOf(String.valueOf(c));
+				if (j == -1) {
+					_keys.get(state).append(c);
+					_targets.get(state).add(_keys.size());
+					_keys.add(new StringBuilder());
+					_targets.add(new ArrayList<Integer>());
+					_outputs.add(-1);
+					state = _keys.size() - 1;
+				} else {
+					state = _targets.get(state).get(j);
+				}
+			}
+			if (_outputs.get(state) == -1)
+				_outputs.set(state, i);
+		}
+		int n = _keys.size();
+		this.keys = new char[n][];
+		this.targets = new int[n][];
+		this.failures = new int[n];
+		this.outputs = new int[n];
+		for (int state = 0; state < n; state++) {
+			// Sort the transitions to search them with a binary search
+			String k = _keys.get(state).toString();
+			List<Integer> t = _targets.get(state);
+			Integer[] order = new Integer[k.length()];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			final String _k = k;
+			java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+				@Override public int compare(Integer i1, Integer i2) {
+					return Character.compare(_k.charAt(i1), _k.charAt(i2));
+				}
+			});
+			this.keys[state] = new char[order.length];
+			this.targets[state] = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				this.keys[state][i] = k.charAt(order[i]);
+				this.targets[state][i] = t.get(order[i]);
+			}
+			this.outputs[state] = _outputs.get(state);
+		}
+		// Compute the failure links in breadth-first order
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int target : this.targets[0])
+			queue.add(target);
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst();
+			for (int i = 0; i < this.keys[state].length; i++) {
+				int target = this.targets[state][i];
+				int failure = this.failures[state];
+				int next;
+				while ((next = transition(failure, this.keys[state][i])) == -1
+						&& failure != 0)
+					failure = this.failures[failure];
+				this.failures[target] = next == -1 || next == target ? 0 : next;
+				if (this.outputs[target] == -1)
+					this.outputs[target] = this.outputs[this.failures[target]];
+				queue.add(target);
+			}
+		}
+	}
+
+	private int transition(final int state, final char c) {
+		int i = java.util.Arrays.binarySearch(this.keys[state], c);
+		return i < 0 ? -1 : this.targets[state][i];
+	}
+
+	/**
+	 * @param state
+	 *            The current state
+	 * @param c
+	 *            The next character
+	 * @return the state reached after reading the character
+	 */
+	private int next(int state, final char c) {
+		int next;
+		while ((next = transition(state, c)) == -1 && state != 0)
+			state = this.failures[state];
+		return next == -1 ? 0 : next;
+	}
+
+	/**
+	 * @return whether this automaton recognizes no text at all
+	 */
+	public boolean isEmpty() {
+		return this.keys[0].length == 0;
+	}
+
+	/**
+	 * @param text
+	 *            The text to search
+	 * @return the first error text found in the given text, or {@code null}
+	 */
+	public String find(final CharSequence text) {
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			state = next(state, text.charAt(i));
+			if (this.outputs[state] != -1)
+				return this.errorTexts[this.outputs[state]];
+		}
+		return null;
+	}
+
+	/**
+	 * @return a new expect matcher that succeeds as soon as one of the error
+	 *         texts is received. The matcher only scans the input received
+	 *         since its previous invocation.
+	 */
+	public Matcher<Result> matcher() {
+		return new Matcher<Result>() {
+			private int state = 0;
+			private int scanned = 0;
+			@Override public Result matches(String input, boolean isEof) {
+				if (input.length() < this.scanned) {
+					// The input was consumed by another expectation
+					this.state = 0;
+					this.scanned = 0;
+				}
+				for (int i = this.scanned; i < input.length(); i++) {
+					this.state = next(this.state, input.charAt(i));
+					if (outputs[this.state] != -1) {
+						String text = errorTexts[outputs[this.state]];
+						int start = i + 1 - text.length();
+						this.scanned = i + 1;
+						return SimpleResult.success(input,
+								input.substring(0, start), text);
+					}
+				}
+				this.scanned = input.length();
+				return SimpleResult.failure(input, false);
+			}
+			@Override public String toString() {
+				return "errorTexts(" + Arrays.join(errorTexts, ", ") + ")";
+			}
+		};
+	}
+
+}
@@ -18,8 +18,10 @@
  */
 package org.amelia.dsl.lib.util;
 
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -40,8 +42,51 @@ public class Log {
 	public static final String SEPARATOR = ANSI.GRAY
 			.format("------------------------------------------------");
 
-	private static final SimpleDateFormat timeFormatter = new SimpleDateFormat(
-			"yyyy-MM-dd HH:mm:ss.SSS");
+	private static final DateTimeFormatter timeFormatter = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+	/**
+	 * The formatted time of the last second in which a message was printed
+	 */
+	private static final class Second {
+		private final long second;
+		private final String formatted;
+
+		public Second(final long second) {
+			this.second = second;
+			this.formatted = timeFormatter.format(Instant.ofEpochSecond(second));
+		}
+	}
+
+	private static volatile Second lastSecond = new Second(0);
+
+	/**
+	 * The colors applied to the text between each pair of characters
+	 */
+	private static final Map<ANSI, char[]> pairs = new LinkedHashMap<ANSI, char[]>();
+
+	static {
+		pairs.put(ANSI.BLUE, new char[] { '(', ')' });
+		pairs.put(ANSI.MAGENTA, new char[] { '[', ']' });
+		pairs.put(ANSI.GREEN, new char[] { '{', '}' });
+		pairs.put(ANSI.CYAN, new char[] { '\'', '\'' });
+		pairs.put(ANSI.YELLOW, new char[] { '"', '"' });
+	}
+
+	private static final Pattern colorPattern = Pattern.compile("\u001b" + "\\[1;[0-9]+m");
+
+	/**
+	 * The thread printing messages in asynchronous mode, or {@code null} if
+	 * messages are printed by the calling thread
+	 */
+	private static ConsoleWriter writer;
+
+	private static volatile boolean initialized = false;
+
+	/**
+	 * The maximum time to wait for the queued messages to be printed
+	 */
+	private static final long FLUSH_TIMEOUT = 5000;
 	
 	private static final String INFO = ANSI.CYAN.format("   INFO");
 	private static final String SUCCESS = ANSI.GREEN.format("SUCCESS");
@@ -53,16 +98,80 @@ public class Log {
 		print(message, false);
 	}
 	
-	private static synchronized void print(String message, boolean showTime) {
-		message = colorPairs(message);
-		if (showTime) {
-			long currentTime = System.currentTimeMillis();
-			String formattedTime = timeFormatter.format(currentTime);
-//			formattedTime = ANSI.GRAY.format(formattedTime);
-			System.out.println(formattedTime + " " + message);
+	private static void print(String message, boolean showTime) {
+		print(message, false, showTime);
+	}
+
+	/**
+	 * @param plain
+	 *            Whether the message is printed as is (i.e., without colors)
+	 */
+	private static void print(String message, boolean plain, boolean showTime) {
+		if (!initialized)
+			initialize();
+		long time = showTime ? System.currentTimeMillis() : 0;
+		if (writer != null) {
+			writer.publish(message, plain, showTime, time);
+		} else if (plain) {
+			synchronized (Log.class) {
+				System.out.println(message);
+			}
 		} else {
-			System.out.println(message);
+			StringBuilder sb = new StringBuilder(message.length() + 32);
+			format(sb, message, showTime, time);
+			synchronized (Log.class) {
+				System.out.println(sb);
+			}
+		}
+	}
+
+	/**
+	 * Starts the console writer if {@code amelia.async_logging} is set
+	 */
+	private static synchronized void initialize() {
+		if (initialized)
+			return;
+		if (Boolean.getBoolean("amelia.async_logging")) {
+			int capacity = Integer.parseInt(
+					System.getProperty("amelia.log_buffer_size", "8192"));
+			writer = new ConsoleWriter(capacity);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override public void run() {
+					writer.flush(FLUSH_TIMEOUT);
+				}
+			});
+		}
+		initialized = true;
+	}
+
+	/**
+	 * Waits until all messages have been printed, or at most
+	 * {@link #FLUSH_TIMEOUT} milliseconds (only relevant in asynchronous mode)
+	 */
+	public static void flush() {
+		if (writer != null)
+			writer.flush(FLUSH_TIMEOUT);
+	}
+
+	static void format(StringBuilder sb, String message, boolean showTime,
+			long time) {
+		if (showTime) {
+			long second = time / 1000;
+			Second last = lastSecond;
+			if (last.second != second) {
+				last = new Second(second);
+				lastSecond = last;
+			}
+			int millis = (int) (time % 1000);
+			sb.append(last.formatted).append('.');
+			if (millis < 100)
+				sb.append('0');
+			if (millis < 10)
+				sb.append('0');
+			sb.append(millis).append(' ');
 		}
+		sb.append(colorPairs(message));
 	}
 
 	public static void info(String message) {
@@ -100,14 +209,12 @@ public class Log {
 	
 	private static String colorPairs(final String text) {
 		String result = text;
-		Map<ANSI, char[]> pairs = new HashMap<ANSI, char[]>();
-		pairs.put(ANSI.BLUE, new char[] { '(', ')' });
-		pairs.put(ANSI.MAGENTA, new char[] { '[', ']' });
-		pairs.put(ANSI.GREEN, new char[] { '{', '}' });
-		pairs.put(ANSI.CYAN, new char[] { '\'', '\'' });
-		pairs.put(ANSI.YELLOW, new char[] { '"', '"' });
-		for (ANSI color : pairs.keySet()) {
-			char[] chars = pairs.get(color);
+		for (Map.Entry<ANSI, char[]> pair : pairs.entrySet()) {
+			ANSI color = pair.getKey();
+			char[] chars = pair.getValue();
+			// Most messages only contain some of the pairs
+			if (result.indexOf(chars[0]) == -1)
+				continue;
 			PairMatcher matcher = new PairMatcher(result, chars[0], chars[1]);
 			result = cleanRedundantRegions(matcher.redundantRegions(), result);
 			matcher.removeRedundantRegions();
@@ -137,8 +244,7 @@ public class Log {
 	private static String lastUsedColor(final String text) {
 		String lastUsedColor = "";
 		String reset = "\u001b[1;0m";
-		Pattern color = Pattern.compile("\u001b" + "\\[1;[0-9]+m");
-		Matcher matcher = color.matcher(text);
+		Matcher matcher = colorPattern.matcher(text);
 		if (matcher.find()) {
 			String matchedColor = matcher.group();
 			if (text.lastIndexOf(matchedColor) > text.lastIndexOf(reset)) {
@@ -179,7 +285,8 @@ public class Log {
 				+ "             (" + b.format("/") + "------" + b.format("\\")
 				+ ")            '----------------------------------------' \n";
 
-		System.out.printf("%s\n", banner);
+		// Printed in order with the queued messages
+		print(banner, true, false);
 	}
 
 }
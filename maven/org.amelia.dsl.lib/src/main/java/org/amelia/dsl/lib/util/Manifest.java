@@ -0,0 +1,286 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The list of files in a directory, along with their size, modification time
+ * and content hash. Manifests are used to synchronise uploaded directories:
+ * the manifest of the local directory is compared with the one stored in the
+ * remote directory (see {@link #FILE_NAME}), so that only files that differ
+ * are uploaded, and files that no longer exist are removed.
+ * <p>
+ * Hashes of local files are cached under {@code amelia.cache_directory}, and
+ * recomputed only when the size or modification time of a file change.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class Manifest {
+
+	public static class Entry {
+
+		private final String path;
+		private final long size;
+		private final long modified;
+		private final String hash;
+
+		public Entry(final String path, final long size, final long modified,
+				final String hash) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+
+		public String path() {
+			return this.path;
+		}
+
+		public long size() {
+			return this.size;
+		}
+
+		public long modified() {
+			return this.modified;
+		}
+
+		public String hash() {
+			return this.hash;
+		}
+
+		@Override
+		public String toString() {
+			return this.hash + "\t" + this.size + "\t" + this.modified + "\t"
+					+ this.path;
+		}
+	}
+
+	/**
+	 * The name of the manifest file stored in the remote directory
+	 */
+	public static final String FILE_NAME = ".amelia-manifest";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The entries of this manifest, by relative path (using "/" as separator)
+	 */
+	private final Map<String, Entry> entries;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(Manifest.class);
+
+	public Manifest() {
+		this.entries = new TreeMap<String, Entry>();
+	}
+
+	/**
+	 * @return whether directories are synchronised instead of being removed
+	 *         and uploaded again, according to {@code amelia.sync_uploads}
+	 */
+	public static boolean isEnabled() {
+		return Boolean.parseBoolean(System.getProperty("amelia.sync_uploads"));
+	}
+
+	/**
+	 * Computes the manifest of a local directory, reusing the cached hashes of
+	 * files whose size and modification time did not change.
+	 * 
+	 * @param directory
+	 *            The local directory
+	 * @return the manifest of the directory
+	 * @throws IOException
+	 *             If a file cannot be read
+	 */
+	public static Manifest of(final File directory) throws IOException {
+		File cacheFile = new File(new File(
+				System.getProperty("amelia.cache_directory", "cache"), "manifests"),
+				ResultCache.hash(directory.getCanonicalPath()));
+		Manifest cached = new Manifest();
+		synchronized (Manifest.class) {
+			if (cacheFile.exists()) {
+				try {
+					cached = parse(new String(
+							Files.readAllBytes(cacheFile.toPath()), UTF8));
+				} catch (Exception e) {
+					logger.warn("Invalid manifest cache " + cacheFile, e);
+				}
+			}
+		}
+		Manifest manifest = new Manifest();
+		manifest.collect(directory, "", cached);
+		synchronized (Manifest.class) {
+			cacheFile.getParentFile().mkdirs();
+			Files.write(cacheFile.toPath(), manifest.toString().getBytes(UTF8));
+		}
+		return manifest;
+	}
+
+	private void collect(final File directory, final String prefix,
+			final Manifest cached) throws IOException {
+		File[] children = directory.listFiles();
+		if (children == null)
+			return;
+		Arrays.sort(children);
+		for (File child : children) {
+			String path = prefix + child.getName();
+			if (child.isDirectory()) {
+				collect(child, path + "/", cached);
+			} else if (!path.equals(FILE_NAME)) {
+				long size = child.length();
+				long modified = child.lastModified();
+				Entry entry = cached.entries.get(path);
+				if (entry == null || entry.size != size
+						|| entry.modified != modified)
+					entry = new Entry(path, size, modified, hash(child));
+				this.entries.put(path, entry);
+			}
+		}
+	}
+
+	/**
+	 * @param text
+	 *            The contents of a manifest file
+	 * @return the corresponding manifest
+	 */
+	public static Manifest parse(final String text) {
+		Manifest manifest = new Manifest();
+		for (String line : text.split("\n")) {
+			if (line.isEmpty())
+				continue;
+			String[] fields = line.split("\t", 4);
+			if (fields.length != 4)
+				throw new IllegalArgumentException("Invalid manifest entry: " + line);
+			Entry entry = new Entry(fields[3], Long.parseLong(fields[1]),
+					Long.parseLong(fields[2]), fields[0]);
+			manifest.entries.put(entry.path, entry);
+		}
+		return manifest;
+	}
+
+	/**
+	 * @param remote
+	 *            The manifest of the remote directory
+	 * @return the relative paths of the files that are missing or differ in
+	 *         the remote directory
+	 */
+	public List<String> changed(final Manifest remote) {
+		List<String> paths = new ArrayList<String>();
+		for (Entry entry : this.entries.values()) {
+			Entry other = remote.entries.get(entry.path);
+			if (other == null || other.size != entry.size
+					|| !other.hash.equals(entry.hash))
+				paths.add(entry.path);
+		}
+		return paths;
+	}
+
+	/**
+	 * @param remote
+	 *            The manifest of the remote directory
+	 * @return the relative paths of the remote files that no longer exist in
+	 *         this manifest
+	 */
+	public List<String> stale(final Manifest remote) {
+		List<String> paths = new ArrayList<String>();
+		for (String path : remote.entries.keySet()) {
+			if (!this.entries.containsKey(path))
+				paths.add(path);
+		}
+		return paths;
+	}
+
+	/**
+	 * @param paths
+	 *            Relative paths of files
+	 * @return the relative paths of the directories containing them, parents
+	 *         first
+	 */
+	public static List<String> directories(final Collection<String> paths) {
+		TreeMap<String, String> directories = new TreeMap<String, String>();
+		for (String path : paths) {
+			int i = path.lastIndexOf('/');
+			while (i > 0) {
+				path = path.substring(0, i);
+				if (directories.put(path, path) != null)
+					break;
+				i = path.lastIndexOf('/');
+			}
+		}
+		return new ArrayList<String>(directories.keySet());
+	}
+
+	public int size() {
+		return this.entries.size();
+	}
+
+	public byte[] toBytes() {
+		return toString().getBytes(UTF8);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Entry entry : this.entries.values())
+			sb.append(entry).append('\n');
+		return sb.toString();
+	}
+
+	private static String hash(final File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] buffer = new byte[65536];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest())
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+}
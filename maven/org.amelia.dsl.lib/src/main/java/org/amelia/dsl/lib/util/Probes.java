@@ -0,0 +1,183 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.NotBoundException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.amelia.dsl.lib.ReadinessProbe;
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Readiness probes for execution descriptors, and the means to wait for them.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class Probes {
+
+	/**
+	 * The initial time between two attempts (in milliseconds)
+	 */
+	private static final long INITIAL_BACKOFF = 50;
+
+	/**
+	 * The maximum time between two attempts (in milliseconds)
+	 */
+	private static final long MAX_BACKOFF = 1000;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(Probes.class);
+
+	/**
+	 * Configures a probe that succeeds once a TCP connection to the given port
+	 * can be established
+	 * 
+	 * @param port
+	 *            The port in the host where the descriptor is executed
+	 * @return the probe
+	 */
+	public static ReadinessProbe port(final int port) {
+		return new ReadinessProbe() {
+			@Override public boolean isReady(Host host,
+					CommandDescriptor descriptor) throws Exception {
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(host.hostname(), port),
+							(int) MAX_BACKOFF);
+					return true;
+				} finally {
+					socket.close();
+				}
+			}
+			@Override public String toString() {
+				return "port " + port;
+			}
+		};
+	}
+
+	/**
+	 * Configures a probe that succeeds once the output of the execution
+	 * descriptor contains a match of the given regular expression
+	 * 
+	 * @param regexp
+	 *            The regular expression
+	 * @return the probe
+	 */
+	public static ReadinessProbe output(final String regexp) {
+		final Pattern pattern = Pattern.compile(regexp);
+		return new ReadinessProbe() {
+			@Override public boolean isReady(Host host,
+					CommandDescriptor descriptor) throws Exception {
+				return pattern.matcher(host.ssh().output(descriptor)).find();
+			}
+			@Override public String toString() {
+				return "output \"" + regexp + "\"";
+			}
+		};
+	}
+
+	/**
+	 * Configures a probe that succeeds once the given name is bound in the RMI
+	 * registry
+	 * 
+	 * @param port
+	 *            The port of the RMI registry
+	 * @param name
+	 *            The name to look up, or {@code null} to succeed once the
+	 *            registry contains any name
+	 * @return the probe
+	 */
+	public static ReadinessProbe rmi(final int port, final String name) {
+		return new ReadinessProbe() {
+			@Override public boolean isReady(Host host,
+					CommandDescriptor descriptor) throws Exception {
+				Registry registry = LocateRegistry.getRegistry(host.hostname(), port);
+				if (name == null)
+					return registry.list().length > 0;
+				try {
+					registry.lookup(name);
+					return true;
+				} catch (NotBoundException e) {
+					return false;
+				}
+			}
+			@Override public String toString() {
+				return "RMI " + (name == null ? "registry" : "service " + name)
+						+ " on port " + port;
+			}
+		};
+	}
+
+	/**
+	 * Polls the readiness probes of an execution descriptor, with exponential
+	 * backoff, until all of them succeed.
+	 * 
+	 * @param host
+	 *            The host in which the descriptor was executed
+	 * @param descriptor
+	 *            The execution descriptor
+	 * @param timeout
+	 *            The maximum time to wait (in milliseconds)
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 * @throws RuntimeException
+	 *             If the probes do not succeed before the timeout
+	 */
+	public static void await(final Host host,
+			final CommandDescriptor descriptor, final long timeout)
+					throws InterruptedException {
+		List<ReadinessProbe> probes = descriptor.readinessProbes();
+		long deadline = System.currentTimeMillis() + timeout;
+		long backoff = INITIAL_BACKOFF;
+		int i = 0;
+		while (i < probes.size()) {
+			ReadinessProbe probe = probes.get(i);
+			boolean ready = false;
+			try {
+				ready = probe.isReady(host, descriptor);
+			} catch (Exception e) {
+				logger.debug("Probe " + probe + " failed in " + host + ": "
+						+ e.getMessage());
+			}
+			if (ready) {
+				i++;
+				backoff = INITIAL_BACKOFF;
+				continue;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				throw new RuntimeException("Readiness probe (" + probe
+						+ ") did not succeed within " + timeout + " ms in host "
+						+ host);
+			Thread.sleep(Math.min(backoff, remaining));
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+	}
+
+}
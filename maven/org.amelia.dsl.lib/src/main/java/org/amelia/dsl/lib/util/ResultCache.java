@@ -0,0 +1,268 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.amelia.dsl.lib.ExecChannel;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A persistent cache of command outputs, for commands that produce the same
+ * result every time they are executed (e.g., checks and idempotent
+ * installations). Entries are addressed by the host, the command and a
+ * fingerprint of the command's inputs; they expire after a given time, and
+ * can be invalidated by a guard command executed in the host.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ResultCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static ResultCache instance;
+
+	/**
+	 * The directory containing one file per entry
+	 */
+	private final File directory;
+
+	/**
+	 * The maximum number of entries. The least recently written entries are
+	 * evicted first.
+	 */
+	private final int maxEntries;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(ResultCache.class);
+
+	/**
+	 * @param directory
+	 *            The directory containing the entries
+	 * @param maxEntries
+	 *            The maximum number of entries
+	 */
+	public ResultCache(final File directory, final int maxEntries) {
+		this.directory = directory;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return a cache configured with the properties
+	 *         {@code amelia.cache_directory} and
+	 *         {@code amelia.cache_max_entries}. The entries are stored in its
+	 *         {@code results} subdirectory, apart from other caches (e.g.,
+	 *         {@link Manifest} hashes)
+	 */
+	public static synchronized ResultCache getInstance() {
+		if (instance == null) {
+			instance = new ResultCache(
+				new File(System.getProperty("amelia.cache_directory", "cache"),
+					"results"),
+				Integer.parseInt(System.getProperty("amelia.cache_max_entries", "1000"))
+			);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param host
+	 *            The host in which the command is executed
+	 * @param command
+	 *            The command
+	 * @param fingerprint
+	 *            A fingerprint of the command's inputs (may be empty)
+	 * @return the key of the corresponding entry
+	 */
+	public String key(final Host host, final String command,
+			final String fingerprint) {
+		return hash(host.username() + "@" + host.hostname() + ":"
+				+ host.sshPort(), command, fingerprint);
+	}
+
+	/**
+	 * @param key
+	 *            The key of the entry
+	 * @param host
+	 *            The host in which the command is executed
+	 * @param guard
+	 *            A command that exits successfully while the entry is valid,
+	 *            or {@code null}
+	 * @return the recorded output, or {@code null} if there is no valid entry
+	 */
+	public String get(final String key, final Host host, final String guard) {
+		File file = new File(this.directory, key);
+		String output;
+		synchronized (this) {
+			if (!file.exists())
+				return null;
+			try {
+				String content = new String(Files.readAllBytes(file.toPath()), UTF8);
+				int newline = content.indexOf('\n');
+				long expiration = Long.parseLong(content.substring(0, newline));
+				if (expiration != -1 && expiration < System.currentTimeMillis()) {
+					file.delete();
+					return null;
+				}
+				output = content.substring(newline + 1);
+			} catch (Exception e) {
+				logger.warn("Invalid cache entry " + file, e);
+				file.delete();
+				return null;
+			}
+		}
+		if (guard != null && !holds(host, guard)) {
+			invalidate(key);
+			return null;
+		}
+		return output;
+	}
+
+	/**
+	 * Records the output of a command
+	 * 
+	 * @param key
+	 *            The key of the entry
+	 * @param output
+	 *            The output of the command
+	 * @param ttl
+	 *            The time (in milliseconds) after which the entry expires, or
+	 *            -1 for entries that do not expire
+	 */
+	public synchronized void put(final String key, final String output,
+			final long ttl) {
+		long expiration = ttl == -1 ? -1 : System.currentTimeMillis() + ttl;
+		try {
+			if (!this.directory.exists())
+				this.directory.mkdirs();
+			File tmp = new File(this.directory, key + ".tmp");
+			Files.write(tmp.toPath(), (expiration + "\n" + output).getBytes(UTF8));
+			Files.move(tmp.toPath(), new File(this.directory, key).toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			evict();
+		} catch (IOException e) {
+			logger.error("Could not write cache entry " + key, e);
+		}
+	}
+
+	public synchronized void invalidate(final String key) {
+		new File(this.directory, key).delete();
+	}
+
+	/**
+	 * Removes the least recently written entries beyond the maximum. Only
+	 * entries are counted: directories and temporary files are ignored.
+	 */
+	private void evict() {
+		File[] files = this.directory.listFiles(new FileFilter() {
+			@Override public boolean accept(File file) {
+				return file.isFile() && !file.getName().endsWith(".tmp");
+			}
+		});
+		if (files == null || files.length <= this.maxEntries)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override public int compare(File f1, File f2) {
+				return Long.compare(f1.lastModified(), f2.lastModified());
+			}
+		});
+		for (int i = 0; i < files.length - this.maxEntries; i++)
+			files[i].delete();
+	}
+
+	private boolean holds(final Host host, final String guard) {
+		try {
+			ExecChannel channel = host.ssh().exec(guard, 0);
+			return channel.exitStatus() == 0;
+		} catch (Exception e) {
+			logger.warn("Guard '" + guard + "' could not be executed in " + host, e);
+			return false;
+		}
+	}
+
+	/**
+	 * @param files
+	 *            Local files used by a command
+	 * @return a fingerprint of the files' contents
+	 * @throws IOException
+	 *             If a file cannot be read
+	 */
+	public static String fingerprint(final File... files) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[65536];
+		for (File file : files) {
+			digest.update(file.getPath().getBytes(UTF8));
+			InputStream in = new FileInputStream(file);
+			try {
+				int n;
+				while ((n = in.read(buffer)) != -1)
+					digest.update(buffer, 0, n);
+			} finally {
+				in.close();
+			}
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * @param texts
+	 *            The texts to hash
+	 * @return a hash of the given texts
+	 */
+	public static String hash(final String... texts) {
+		MessageDigest digest = sha256();
+		for (String text : texts) {
+			digest.update(text.getBytes(UTF8));
+			digest.update((byte) 0);
+		}
+		return hex(digest.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String hex(final byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+}
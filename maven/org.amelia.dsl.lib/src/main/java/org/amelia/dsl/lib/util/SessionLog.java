@@ -0,0 +1,340 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An appendable writing the input and output of an SSH session to a file.
+ * Appending never blocks on the file system: char sequences are queued, and
+ * a background thread shared by all session logs writes them in batches.
+ * Optionally, files are compressed and rotated by size. The session logs
+ * that are still open when the JVM exits are written and closed by a
+ * shutdown hook, so that no output (nor gzip trailer) is lost.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SessionLog implements Appendable {
+
+	/**
+	 * The thread writing the queued char sequences of all session logs
+	 */
+	private static class WriterThread extends Thread {
+
+		/**
+		 * Session logs with pending char sequences
+		 */
+		private final LinkedBlockingQueue<SessionLog> dirtyLogs;
+
+		public WriterThread() {
+			super("amelia-session-log-writer");
+			this.dirtyLogs = new LinkedBlockingQueue<SessionLog>();
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					SessionLog log = this.dirtyLogs.take();
+					log.drain();
+					// Flush once there is nothing else to write
+					if (this.dirtyLogs.isEmpty())
+						log.flush();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+	}
+
+	private static WriterThread writer;
+
+	/**
+	 * The session logs that have not been closed
+	 */
+	private static final Set<SessionLog> openLogs = Collections.newSetFromMap(
+			new ConcurrentHashMap<SessionLog, Boolean>());
+
+	/**
+	 * The maximum time to wait for a log to be written when it is closed
+	 */
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	/**
+	 * The maximum number of characters waiting to be written. Char sequences
+	 * appended beyond this limit are discarded.
+	 */
+	private static final long MAX_PENDING = 8 * 1024 * 1024;
+
+	private final File file;
+
+	private final boolean compress;
+
+	/**
+	 * The size in characters after which the file is rotated (0 for no
+	 * rotation)
+	 */
+	private final long maxSize;
+
+	private final ConcurrentLinkedQueue<CharSequence> queue;
+
+	private final AtomicBoolean dirty;
+
+	private final AtomicLong pending;
+
+	private final AtomicLong discarded;
+
+	private final CountDownLatch closeSignal;
+
+	private volatile boolean closed;
+
+	private Writer out;
+
+	private long written;
+
+	private int rotations;
+
+	/**
+	 * The logger
+	 */
+	private static Logger logger = LogManager.getLogger(SessionLog.class);
+
+	/**
+	 * Creates a session log configured with the properties
+	 * {@code amelia.session_log_compress} and
+	 * {@code amelia.session_log_max_size}.
+	 * 
+	 * @param file
+	 *            The file to write (".gz" is appended to its name if the log
+	 *            is compressed)
+	 */
+	public SessionLog(final File file) {
+		this(file, Boolean.parseBoolean(System
+				.getProperty("amelia.session_log_compress")), Long.parseLong(
+				System.getProperty("amelia.session_log_max_size", "0")));
+	}
+
+	/**
+	 * @param file
+	 *            The file to write (".gz" is appended to its name if the log
+	 *            is compressed)
+	 * @param compress
+	 *            Whether to compress the file using gzip
+	 * @param maxSize
+	 *            The number of characters after which a new file is started,
+	 *            or 0 to write a single file
+	 */
+	public SessionLog(final File file, final boolean compress, final long maxSize) {
+		this.file = file;
+		this.compress = compress;
+		this.maxSize = maxSize;
+		this.queue = new ConcurrentLinkedQueue<CharSequence>();
+		this.dirty = new AtomicBoolean(false);
+		this.pending = new AtomicLong(0);
+		this.discarded = new AtomicLong(0);
+		this.closeSignal = new CountDownLatch(1);
+		this.closed = false;
+		synchronized (SessionLog.class) {
+			if (writer == null) {
+				writer = new WriterThread();
+				writer.start();
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override public void run() {
+						closeAll();
+					}
+				});
+			}
+		}
+		openLogs.add(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Appendable#append(java.lang.CharSequence)
+	 */
+	@Override
+	public Appendable append(CharSequence csq) {
+		if (this.closed || csq.length() == 0)
+			return this;
+		if (this.pending.addAndGet(csq.length()) > MAX_PENDING) {
+			this.pending.addAndGet(-csq.length());
+			this.discarded.addAndGet(csq.length());
+		} else {
+			this.queue.offer(csq.toString());
+		}
+		schedule();
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Appendable#append(char)
+	 */
+	@Override
+	public Appendable append(char c) {
+		return append(String.valueOf(c));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Appendable#append(java.lang.CharSequence, int, int)
+	 */
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) {
+		return append(csq.subSequence(start, end));
+	}
+
+	private void schedule() {
+		if (this.dirty.compareAndSet(false, true))
+			writer.dirtyLogs.offer(this);
+	}
+
+	/**
+	 * Writes the queued char sequences. Only called by the writer thread.
+	 */
+	private void drain() {
+		this.dirty.set(false);
+		try {
+			long discarded = this.discarded.getAndSet(0);
+			if (discarded > 0)
+				write("\n[" + discarded + " characters were discarded]\n");
+			CharSequence csq;
+			while ((csq = this.queue.poll()) != null) {
+				this.pending.addAndGet(-csq.length());
+				write(csq);
+			}
+		} catch (IOException e) {
+			logger.error("Error writing session log " + this.file, e);
+		} finally {
+			// Release close() even if the file could not be written
+			if (this.closed && this.closeSignal.getCount() > 0) {
+				try {
+					if (this.out != null)
+						this.out.close();
+				} catch (IOException e) {
+					logger.error("Error closing session log " + this.file, e);
+				}
+				this.closeSignal.countDown();
+			}
+		}
+	}
+
+	private void write(CharSequence csq) throws IOException {
+		if (this.out == null || this.maxSize > 0 && this.written >= this.maxSize)
+			rotate();
+		this.out.append(csq);
+		this.written += csq.length();
+	}
+
+	private void rotate() throws IOException {
+		if (this.out != null)
+			this.out.close();
+		File _file = this.file;
+		if (this.rotations > 0) {
+			String name = this.file.getName();
+			int dot = name.lastIndexOf('.');
+			name = dot == -1 ? name + "." + this.rotations
+					: name.substring(0, dot) + "." + this.rotations + name.substring(dot);
+			_file = new File(this.file.getParentFile(), name);
+		}
+		if (this.compress)
+			_file = new File(_file.getPath() + ".gz");
+		OutputStream stream = new FileOutputStream(_file);
+		if (this.compress)
+			stream = new GZIPOutputStream(stream, 65536);
+		this.out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 65536);
+		this.written = 0;
+		this.rotations++;
+	}
+
+	private void flush() {
+		try {
+			if (this.out != null && !this.closed)
+				this.out.flush();
+		} catch (IOException e) {
+			logger.error("Error writing session log " + this.file, e);
+		}
+	}
+
+	/**
+	 * Writes the pending char sequences and closes the file, waiting at most
+	 * {@link #CLOSE_TIMEOUT} milliseconds.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting for the file to
+	 *             be closed
+	 */
+	public void close() throws InterruptedException {
+		this.closed = true;
+		openLogs.remove(this);
+		schedule();
+		if (!this.closeSignal.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+			logger.warn("Session log " + this.file + " could not be written");
+	}
+
+	/**
+	 * Closes the session logs that are still open, waiting at most
+	 * {@link #CLOSE_TIMEOUT} milliseconds for them to be written.
+	 */
+	private static void closeAll() {
+		List<SessionLog> logs = new ArrayList<SessionLog>(openLogs);
+		for (SessionLog log : logs) {
+			log.closed = true;
+			openLogs.remove(log);
+			log.schedule();
+		}
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+		try {
+			for (SessionLog log : logs) {
+				long timeout = deadline - System.currentTimeMillis();
+				if (timeout <= 0 || !log.closeSignal.await(timeout,
+						TimeUnit.MILLISECONDS)) {
+					logger.warn("Session log " + log.file
+							+ " could not be written before exiting");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local files read once and shared by all the transfers of a deployment.
+ * When the same artifact is sent to many hosts, each transfer reads a
+ * read-only view of a single memory mapping of the file, instead of opening
+ * and reading the file again. Each view has its own position, therefore every
+ * host consumes the shared buffer at its own pace: a slow connection only
+ * delays its own transfer.
+ * <p>
+ * Only files that are not being written are mapped: a file modified in the
+ * last {@link #STABLE_PERIOD} milliseconds, or while it is being mapped, is
+ * read through a regular stream instead. The mappings are forgotten when the
+ * deployment finishes or is shut down.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class SharedFiles {
+
+	/**
+	 * A mapped file, and the version of the file it corresponds to
+	 */
+	private static class Mapping {
+		private final MappedByteBuffer buffer;
+		private final long lastModified;
+
+		public Mapping(final MappedByteBuffer buffer, final long lastModified) {
+			this.buffer = buffer;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * An input stream reading a view of a shared buffer
+	 */
+	private static class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		public BufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length)
+				throws IOException {
+			if (length == 0)
+				return 0;
+			if (!this.buffer.hasRemaining())
+				return -1;
+			int n = Math.min(length, this.buffer.remaining());
+			this.buffer.get(bytes, offset, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+			this.buffer.position(this.buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return this.buffer.remaining();
+		}
+	}
+
+	/**
+	 * The time (in milliseconds) since the last modification of a file after
+	 * which it is considered complete. It also covers file systems with a
+	 * coarse modification time.
+	 */
+	private static final long STABLE_PERIOD = 2000;
+
+	private static SharedFiles instance;
+
+	/**
+	 * The mapped files, indexed by their canonical path
+	 */
+	private final Map<String, Mapping> mappings;
+
+	private SharedFiles() {
+		this.mappings = new HashMap<String, Mapping>();
+	}
+
+	public static synchronized SharedFiles getInstance() {
+		if (instance == null)
+			instance = new SharedFiles();
+		return instance;
+	}
+
+	/**
+	 * @return whether transfers read local files through this class
+	 */
+	public static boolean isEnabled() {
+		return Boolean.getBoolean("amelia.shared_files");
+	}
+
+	/**
+	 * Opens a stream to read the given file. The file is mapped the first
+	 * time it is opened (or after it is modified); files larger than 2 GB,
+	 * and files being written, are read directly.
+	 * 
+	 * @param file
+	 *            The local file
+	 * @return a stream reading a private view of the mapped file
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	public InputStream open(final File file) throws IOException {
+		ByteBuffer buffer = file.length() > Integer.MAX_VALUE ? null
+				: buffer(file);
+		if (buffer == null)
+			return new FileInputStream(file);
+		return new BufferInputStream(buffer);
+	}
+
+	/**
+	 * @param file
+	 *            The local file
+	 * @return a read-only view of the mapped file, with its own position, or
+	 *         {@code null} if the file is being written
+	 * @throws IOException
+	 *             If the file cannot be mapped
+	 */
+	public ByteBuffer buffer(final File file) throws IOException {
+		String path = file.getCanonicalPath();
+		Mapping mapping;
+		synchronized (this.mappings) {
+			mapping = this.mappings.get(path);
+			if (mapping == null || mapping.lastModified != file.lastModified()
+					|| mapping.buffer.capacity() != file.length()) {
+				this.mappings.remove(path);
+				mapping = map(file);
+				if (mapping == null)
+					return null;
+				this.mappings.put(path, mapping);
+			}
+		}
+		return mapping.buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the mapping of the given file, or {@code null} if it was
+	 *         modified recently or while it was mapped
+	 */
+	private Mapping map(final File file) throws IOException {
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if (System.currentTimeMillis() - lastModified < STABLE_PERIOD)
+			return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// The mapping remains valid after closing the channel
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			if (buffer.capacity() != length || file.lastModified() != lastModified
+					|| file.length() != length)
+				return null;
+			return new Mapping(buffer, lastModified);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Forgets the mapped files. Their memory is released once the transfers
+	 * reading them finish.
+	 */
+	public void clear() {
+		synchronized (this.mappings) {
+			this.mappings.clear();
+		}
+	}
+
+}
@@ -18,6 +18,10 @@
  */
 package org.amelia.dsl.lib.util;
 
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * This class encapsulates utility methods to work with shell interfaces
  * 
@@ -35,6 +39,22 @@ public class ShellUtils {
 		return "echo $0 | cut -c 2-";
 	}
 
+	/**
+	 * A random token included in the Amelia prompt. Since no process is
+	 * expected to print it, the prompt can be recognized by searching the
+	 * token literally, instead of matching every part of the prompt.
+	 */
+	private static final String PROMPT_TOKEN = promptToken();
+
+	private static String promptToken() {
+		byte[] bytes = new byte[6];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes)
+			token.append(String.format("%02x", b));
+		return token.toString();
+	}
+
 	/**
 	 * Creates a string to set the prompt to a reliable prompt, that is, a
 	 * unique string not commonly returned by any process. By changing the
@@ -49,9 +69,9 @@ public class ShellUtils {
 	 *         prompt
 	 */
 	public static String ameliaPromptFormat(String shell) {
-		// e.g., [Amelia 2015-09-28 18:54:34 user@grid0:~/Desktop]$
-		String bash = "[Amelia \\D{%F %T} \\u@\\h:\\w]$ ";
-		String zsh = "[Amelia %D{%Y-%m-%d %H:%M:%S} %n% @%m% :%~]$ ";
+		// e.g., [Amelia 3f9a0c1d2b4e 2015-09-28 18:54:34 user@grid0:~/Desktop]$
+		String bash = "[Amelia " + PROMPT_TOKEN + " \\D{%F %T} \\u@\\h:\\w]$ ";
+		String zsh = "[Amelia " + PROMPT_TOKEN + " %D{%Y-%m-%d %H:%M:%S} %n% @%m% :%~]$ ";
 		String command = "PS1=\"";
 		
 		if (shell.contains("bash"))
@@ -63,24 +83,112 @@ public class ShellUtils {
 	}
 
 	/**
+	 * The expression starts with a literal (the prompt token), which is
+	 * searched in linear time. The rest of the prompt (date, user, host and
+	 * directory) is consumed by a single possessive quantifier, thus the
+	 * expression does not backtrack on large outputs or deep directories.
+	 * 
 	 * @return the regular expression to recognize the Amelia prompt
 	 */
 	public static String ameliaPromptRegexp() {
-		String date = "(\\d+){4}-(\\d+){2}-(\\d+){2}";
-		String time = "(\\d+){2}:(\\d+){2}:(\\d+){2}";
-		String user = "([a-z_][a-z0-9_]{0,30})";
-		String host = "([a-zA-Z0-9-\\.]{0,24})";
-		String directory = "((\\/)?([^\\/ ]+(\\/)?)+|\\/)";
-		StringBuilder regexp = new StringBuilder();
-		regexp.append("\\[Amelia ");
-		regexp.append(date + " ");
-		regexp.append(time + " ");
-		regexp.append(user);
-		regexp.append("@");
-		regexp.append(host + ":");
-		regexp.append(directory);
-		regexp.append("\\]\\$ ");
-		return regexp.toString();
+		return "\\[Amelia " + PROMPT_TOKEN + " [^\\]\\n]*+\\]\\$ ";
+	}
+
+	/**
+	 * @param text
+	 *            The text to quote
+	 * @return the given text between single quotes, so that the shell does
+	 *         not interpret it
+	 */
+	public static String quote(String text) {
+		return "'" + text.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * The commands that change the state of the shell in which they are
+	 * executed (rather than the state of the host)
+	 */
+	private static final Set<String> STATE_COMMANDS = new HashSet<String>(
+			java.util.Arrays.asList("cd", "pushd", "popd", "export", "unset",
+					"set", "source", ".", "alias", "unalias", "umask", "ulimit",
+					"shopt", "declare", "typeset", "readonly", "eval", "exec",
+					"trap", "hash"));
+
+	/**
+	 * @param command
+	 *            A shell command
+	 * @return whether any of the commands in the given command line changes
+	 *         the state of the shell (e.g., the working directory, a variable
+	 *         or an alias), which does not survive the shell session
+	 */
+	public static boolean changesShellState(String command) {
+		for (String part : command.split("&&|\\|\\||;|\\||\n")) {
+			String trimmed = part.trim().replaceFirst("^[({]\\s*", "");
+			if (trimmed.isEmpty())
+				continue;
+			String name = trimmed.split("\\s+", 2)[0];
+			if (STATE_COMMANDS.contains(name)
+					|| name.matches("[A-Za-z_][A-Za-z0-9_]*=.*"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Wraps a command between two markers: one printed before executing the
+	 * command, and another one, carrying the command's exit code, printed
+	 * after it. The markers are split in the sent text, so that they are not
+	 * matched if the shell echoes the command.
+	 * 
+	 * @param command
+	 *            The command to wrap
+	 * @param id
+	 *            A unique identifier for this execution
+	 * @return the wrapped command
+	 */
+	public static String sentinelCommand(String command, String id) {
+		String trimmed = command.trim();
+		// A trailing separator would be followed by another one (;;)
+		while (trimmed.endsWith(";") && !trimmed.endsWith("\\;"))
+			trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+		String separator;
+		if (trimmed.contains("\n")) {
+			// The marker must follow the last line (e.g., of a here-document)
+			trimmed = "{ " + trimmed + "\n}";
+			separator = "; ";
+		} else {
+			// Commands sent to the background are already terminated
+			separator = trimmed.endsWith("&") && !trimmed.endsWith("&&")
+					? " " : "; ";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("echo \"--AM\"\"ELIA-BEGIN:" + id + "--\"; ");
+		sb.append(trimmed);
+		sb.append(separator);
+		sb.append("echo \"--AM\"\"ELIA-END:" + id + ":$?--\"");
+		return sb.toString();
+	}
+
+	/**
+	 * @param id
+	 *            The identifier used to wrap the command
+	 * @return the marker printed before executing a command wrapped with
+	 *         {@link #sentinelCommand(String, String)}
+	 */
+	public static String sentinelBegin(String id) {
+		return "--AMELIA-BEGIN:" + id + "--";
+	}
+
+	/**
+	 * @param id
+	 *            The identifier used to wrap the command
+	 * @return a regular expression matching the marker printed after
+	 *         executing a command wrapped with
+	 *         {@link #sentinelCommand(String, String)}. The exit code is
+	 *         group 1.
+	 */
+	public static String sentinelEndRegexp(String id) {
+		return "\\-\\-AMELIA\\-END:" + id.replace("-", "\\-") + ":([0-9]+)\\-\\-";
 	}
 
 	/**
@@ -99,6 +207,41 @@ public class ShellUtils {
 		return sb.toString();
 	}
 
+	/**
+	 * @param pid
+	 *            The process identifier of a shell
+	 * @return a command to kill the given shell and all of its descendants.
+	 *         Each process is stopped before its children are searched, so
+	 *         that it cannot start new ones, and killed after them. The
+	 *         process group of the shell is killed as well, which covers the
+	 *         descendants that were orphaned in the meantime. The returned
+	 *         command uses the SIGKILL signal.
+	 */
+	public static String killTreeCommand(int pid) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("amelia_kill() { kill -STOP $1 2>/dev/null; ");
+		sb.append("for child in $(pgrep -P $1); do amelia_kill $child; done; ");
+		sb.append("kill -KILL $1 2>/dev/null; }; ");
+		sb.append("amelia_kill " + pid + "; ");
+		sb.append("kill -KILL -- -" + pid + " 2>/dev/null");
+		return sb.toString();
+	}
+
+	/**
+	 * @param pid
+	 *            The process identifier of an interactive shell
+	 * @return a command to kill the process group running in the foreground
+	 *         of the shell's terminal, if it is not the shell itself. The
+	 *         returned command uses the SIGKILL signal.
+	 */
+	public static String killForegroundCommand(int pid) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("pgid=$(ps -o tpgid= -p " + pid + " | tr -d ' '); ");
+		sb.append("if [ -n \"$pgid\" ] && [ \"$pgid\" != " + pid + " ] ");
+		sb.append("&& [ \"$pgid\" -gt 0 ]; then kill -KILL -- -$pgid; fi");
+		return sb.toString();
+	}
+
 	/**
 	 * @param criterion
 	 *            A string to search the FraSCAti component in execution
@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes a directory tree as a POSIX (ustar) archive, readable by GNU tar
+ * and busybox. Names longer than the ustar limits are written using GNU long
+ * name entries, and sizes larger than 8 GB using the GNU base-256 encoding.
+ * Only directories and regular files are archived.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class TarWriter {
+
+	private static final int BLOCK_SIZE = 512;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final OutputStream output;
+
+	private final byte[] buffer;
+
+	/**
+	 * The number of bytes written so far
+	 */
+	private long written;
+
+	/**
+	 * @param output
+	 *            The stream in which the archive is written
+	 */
+	public TarWriter(final OutputStream output) {
+		this.output = output;
+		this.buffer = new byte[65536];
+		this.written = 0;
+	}
+
+	/**
+	 * Writes the contents of the given directory (but not the directory
+	 * itself), using names relative to it.
+	 * 
+	 * @param directory
+	 *            The local directory
+	 * @return the number of files written
+	 * @throws IOException
+	 *             If a file cannot be read, or the output cannot be written
+	 */
+	public int writeContents(final File directory) throws IOException {
+		return writeContents(directory, "");
+	}
+
+	private int writeContents(final File directory, final String prefix)
+			throws IOException {
+		File[] children = directory.listFiles();
+		if (children == null)
+			return 0;
+		Arrays.sort(children);
+		int files = 0;
+		for (File child : children) {
+			String name = prefix + child.getName();
+			if (child.isDirectory()) {
+				header(name + "/", '5', 0755, 0, child.lastModified());
+				files += writeContents(child, name + "/");
+			} else if (child.isFile()) {
+				writeFile(name, child);
+				files++;
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Writes a regular file
+	 * 
+	 * @param name
+	 *            The name of the entry
+	 * @param file
+	 *            The local file
+	 * @throws IOException
+	 *             If the file cannot be read, or the output cannot be written
+	 */
+	public void writeFile(final String name, final File file)
+			throws IOException {
+		long size = file.length();
+		header(name, '0', file.canExecute() ? 0755 : 0644, size,
+				file.lastModified());
+		InputStream input = SharedFiles.isEnabled()
+				? SharedFiles.getInstance().open(file)
+				: new FileInputStream(file);
+		long remaining = size;
+		try {
+			int n;
+			while (remaining > 0 && (n = input.read(this.buffer, 0,
+					(int) Math.min(this.buffer.length, remaining))) != -1) {
+				write(this.buffer, n);
+				remaining -= n;
+			}
+		} finally {
+			input.close();
+		}
+		if (remaining > 0)
+			throw new IOException(file + " was truncated while being archived");
+		pad();
+	}
+
+	/**
+	 * Writes the end-of-archive marker. The underlying stream is not closed.
+	 * 
+	 * @throws IOException
+	 *             If the output cannot be written
+	 */
+	public void finish() throws IOException {
+		write(new byte[BLOCK_SIZE * 2], BLOCK_SIZE * 2);
+		this.output.flush();
+	}
+
+	/**
+	 * @return the number of bytes written so far (before compression, if
+	 *         any)
+	 */
+	public long written() {
+		return this.written;
+	}
+
+	private void header(final String name, final char type, final int mode,
+			final long size, final long modified) throws IOException {
+		byte[] bytes = name.getBytes(UTF8);
+		byte[] prefix = new byte[0];
+		if (bytes.length > 100) {
+			int split = splitPoint(bytes);
+			if (split == -1) {
+				// GNU long name: the name is the content of a previous entry
+				byte[] content = Arrays.copyOf(bytes, bytes.length + 1);
+				header("././@LongLink".getBytes(UTF8), new byte[0], 'L', 0644,
+						content.length, 0);
+				write(content, content.length);
+				pad();
+				bytes = Arrays.copyOf(bytes, 100);
+			} else {
+				prefix = Arrays.copyOf(bytes, split);
+				bytes = Arrays.copyOfRange(bytes, split + 1, bytes.length);
+			}
+		}
+		header(bytes, prefix, type, mode, size, modified / 1000);
+	}
+
+	/**
+	 * @return the position of the separator that splits the given name into
+	 *         a ustar prefix and name, or -1 if there is none
+	 */
+	private static int splitPoint(final byte[] name) {
+		int end = name.length - 1; // a trailing separator belongs to the name
+		for (int i = Math.min(155, end - 1); i > 0; i--) {
+			if (name[i] == '/' && end - i <= 100)
+				return i;
+		}
+		return -1;
+	}
+
+	private void header(final byte[] name, final byte[] prefix,
+			final char type, final int mode, final long size,
+			final long modified) throws IOException {
+		byte[] header = new byte[BLOCK_SIZE];
+		System.arraycopy(name, 0, header, 0, name.length);
+		octal(header, 100, 8, mode);
+		octal(header, 108, 8, 0); // uid
+		octal(header, 116, 8, 0); // gid
+		if (size < 077777777777L) {
+			octal(header, 124, 12, size);
+		} else {
+			header[124] = (byte) 0x80;
+			for (int i = 0; i < 8; i++)
+				header[135 - i] = (byte) (size >>> (8 * i));
+		}
+		octal(header, 136, 12, modified);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\u000000".getBytes(UTF8), 0, header, 257, 8);
+		System.arraycopy(prefix, 0, header, 345, prefix.length);
+		// The checksum is computed with its own field filled with spaces
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		long checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xff;
+		octal(header, 148, 7, checksum);
+		write(header, BLOCK_SIZE);
+	}
+
+	/**
+	 * Writes the given value as a zero-terminated octal number
+	 */
+	private static void octal(final byte[] header, final int offset,
+			final int length, final long value) {
+		String digits = Long.toOctalString(value);
+		int padding = length - 1 - digits.length();
+		for (int i = 0; i < padding; i++)
+			header[offset + i] = '0';
+		for (int i = 0; i < digits.length(); i++)
+			header[offset + padding + i] = (byte) digits.charAt(i);
+		header[offset + length - 1] = 0;
+	}
+
+	/**
+	 * Fills the current block with zeros
+	 */
+	private void pad() throws IOException {
+		int remainder = (int) (this.written % BLOCK_SIZE);
+		if (remainder != 0)
+			write(new byte[BLOCK_SIZE - remainder], BLOCK_SIZE - remainder);
+	}
+
+	private void write(final byte[] bytes, final int length)
+			throws IOException {
+		this.output.write(bytes, 0, length);
+		this.written += length;
+	}
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.junit.Test;
+
+/**
+ * Compares the completion of 10^5 tasks that do nothing when it is notified
+ * through precomputed successor arrays (as {@link ReadyQueueExecutor} does)
+ * and through {@link Observable} descriptors (as the graph did before).
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class CompletionNotificationTest {
+
+	/**
+	 * Completes tasks and notifies their successors
+	 */
+	private interface Engine {
+		/**
+		 * @param times
+		 *            Receives the time at which the first task is submitted,
+		 *            and the time at which the last one completes
+		 * @return the number of completed tasks
+		 */
+		int run(ExecutorService executor, long[] times)
+				throws InterruptedException;
+	}
+
+	private static final int TASKS = 100000;
+
+	private static final int HOSTS = 50;
+
+	private static final int WORKERS = 4;
+
+	private static final int ROUNDS = 3;
+
+	/**
+	 * A graph of {@link #TASKS} commands, each one depending on up to two of
+	 * the previous 100 commands
+	 */
+	private static DescriptorGraph graph() {
+		Random random = new Random(11);
+		Host[] hosts = new Host[HOSTS];
+		for (int i = 0; i < HOSTS; i++)
+			hosts[i] = new Host("b" + i, 21, 22, "user", "password");
+		CommandDescriptor[] commands = new CommandDescriptor[TASKS];
+		for (int i = 0; i < TASKS; i++) {
+			commands[i] = new CommandDescriptor.Builder()
+				.withCommand("c" + i)
+				.build();
+			commands[i].runsOn(hosts[random.nextInt(HOSTS)]);
+			for (int j = 0; j < 2 && i > 0; j++)
+				commands[i].dependsOn(commands[Math.max(0, i - 1 - random.nextInt(100))]);
+		}
+		DescriptorGraph graph = new DescriptorGraph();
+		graph.addDescriptors(commands);
+		return graph;
+	}
+
+	/**
+	 * The current engine: each task counts its successors down
+	 */
+	private static Engine successorArrays(final DescriptorGraph graph) {
+		return new Engine() {
+			class Node implements Runnable {
+				private final ScheduledTask<?> task;
+				private final AtomicInteger pending;
+				private Node[] successors;
+				private final ExecutorService executor;
+				private final CountDownLatch done;
+
+				Node(ScheduledTask<?> task, int pending,
+						ExecutorService executor, CountDownLatch done) {
+					this.task = task;
+					this.pending = new AtomicInteger(pending);
+					this.executor = executor;
+					this.done = done;
+				}
+
+				@Override public void run() {
+					this.task.descriptor().done(this.task.host());
+					for (Node successor : this.successors) {
+						if (successor.pending.decrementAndGet() == 0)
+							this.executor.execute(successor);
+					}
+					this.done.countDown();
+				}
+			}
+
+			@Override public int run(ExecutorService executor, long[] times)
+					throws InterruptedException {
+				Map<ScheduledTask<?>, List<ScheduledTask<?>>> successors = graph
+					.successorTasks();
+				CountDownLatch done = new CountDownLatch(successors.size());
+				Map<ScheduledTask<?>, Node> nodes = new HashMap<ScheduledTask<?>, Node>();
+				List<Node> roots = new ArrayList<Node>();
+				for (ScheduledTask<?> task : successors.keySet()) {
+					int pending = graph.countDependencyTasks(task.descriptor(),
+							task.host());
+					Node node = new Node(task, pending, executor, done);
+					nodes.put(task, node);
+					if (pending == 0)
+						roots.add(node);
+				}
+				for (Map.Entry<ScheduledTask<?>, Node> e : nodes.entrySet()) {
+					List<ScheduledTask<?>> _successors = successors.get(e.getKey());
+					Node[] array = new Node[_successors.size()];
+					for (int i = 0; i < array.length; i++)
+						array[i] = nodes.get(_successors.get(i));
+					e.getValue().successors = array;
+				}
+				times[0] = System.nanoTime();
+				for (Node root : roots)
+					executor.execute(root);
+				done.await();
+				times[1] = System.nanoTime();
+				return nodes.size() - (int) done.getCount();
+			}
+		};
+	}
+
+	/**
+	 * The previous engine: each task observes the descriptors it depends on
+	 */
+	private static Engine observers(final DescriptorGraph graph) {
+		return new Engine() {
+			class Node implements Runnable, Observer {
+				private final ScheduledTask<?> task;
+				private int pending;
+				private final ExecutorService executor;
+				private final CountDownLatch done;
+
+				Node(ScheduledTask<?> task, int pending,
+						ExecutorService executor, CountDownLatch done) {
+					this.task = task;
+					this.pending = pending;
+					this.executor = executor;
+					this.done = done;
+				}
+
+				@Override public void run() {
+					CommandDescriptor descriptor = this.task.descriptor();
+					synchronized (descriptor) {
+						descriptor.done(this.task.host());
+					}
+					this.done.countDown();
+				}
+
+				@Override public synchronized void update(Observable o, Object arg) {
+					if (--this.pending == 0)
+						this.executor.execute(this);
+				}
+			}
+
+			@Override public int run(ExecutorService executor, long[] times)
+					throws InterruptedException {
+				List<ScheduledTask<?>> tasks = new ArrayList<ScheduledTask<?>>(
+						graph.successorTasks().keySet());
+				CountDownLatch done = new CountDownLatch(tasks.size());
+				List<Node> roots = new ArrayList<Node>();
+				for (ScheduledTask<?> task : tasks) {
+					int pending = graph.countDependencyTasks(task.descriptor(),
+							task.host());
+					Node node = new Node(task, pending, executor, done);
+					for (CommandDescriptor dependency : task.descriptor().dependencies())
+						dependency.addObserver(node);
+					if (pending == 0)
+						roots.add(node);
+				}
+				times[0] = System.nanoTime();
+				for (Node root : roots)
+					executor.execute(root);
+				done.await();
+				times[1] = System.nanoTime();
+				for (ScheduledTask<?> task : tasks)
+					task.descriptor().deleteObservers();
+				return tasks.size() - (int) done.getCount();
+			}
+		};
+	}
+
+	@Test
+	public void completesLargeGraphs() throws InterruptedException {
+		DescriptorGraph graph = graph();
+		Engine arrays = successorArrays(graph), observers = observers(graph);
+		long[] _arrays = new long[2], _observers = new long[2];
+		// The first two rounds warm up both engines
+		for (int i = 0; i < 2 + ROUNDS; i++) {
+			long[] a = measure(arrays), o = measure(observers);
+			if (i < 2)
+				continue;
+			for (int j = 0; j < 2; j++) {
+				_arrays[j] += a[j];
+				_observers[j] += o[j];
+			}
+		}
+		System.err.println(String.format("%d tasks, %d workers, mean of %d rounds: "
+				+ "successor arrays %d ms (+%d ms to prepare), "
+				+ "observers %d ms (+%d ms to prepare)", TASKS, WORKERS, ROUNDS,
+				_arrays[1] / ROUNDS, _arrays[0] / ROUNDS,
+				_observers[1] / ROUNDS, _observers[0] / ROUNDS));
+	}
+
+	/**
+	 * @return the time taken to prepare the engine and the time taken to
+	 *         complete all tasks (in milliseconds)
+	 */
+	private static long[] measure(final Engine engine) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+		try {
+			long[] times = new long[2];
+			long start = System.nanoTime();
+			assertEquals(TASKS, engine.run(executor, times));
+			return new long[] { (times[0] - start) / 1000000,
+					(times[1] - times[0]) / 1000000 };
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+}
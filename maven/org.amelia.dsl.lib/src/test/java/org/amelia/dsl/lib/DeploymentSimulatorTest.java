@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.amelia.dsl.lib.DeploymentSimulator.Policy;
+import org.amelia.dsl.lib.DeploymentSimulator.Report;
+import org.amelia.dsl.lib.descriptors.CommandDescriptor;
+import org.amelia.dsl.lib.descriptors.Host;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class DeploymentSimulatorTest {
+
+	private final DurationHistory history = new DurationHistory(
+			new File("target", "no-durations.properties"));
+
+	private static CommandDescriptor command(final String command,
+			final long duration, final Host host,
+			final CommandDescriptor... dependencies) {
+		CommandDescriptor descriptor = new CommandDescriptor.Builder()
+			.withCommand(command)
+			.withExpectedDuration(duration)
+			.build();
+		descriptor.runsOn(host);
+		descriptor.dependsOn(dependencies);
+		return descriptor;
+	}
+
+	private static Host host(final String name) {
+		return new Host(name, 21, 22, "user", "password");
+	}
+
+	@Test
+	public void dependenciesDetermineTheMakespan() {
+		Host h1 = host("h1"), h2 = host("h2");
+		CommandDescriptor a = command("a", 100, h1);
+		CommandDescriptor b = command("b", 200, h1, a);
+		CommandDescriptor c = command("c", 50, h2);
+		DescriptorGraph graph = new DescriptorGraph();
+		graph.addDescriptors(a, b, c);
+		Report report = new DeploymentSimulator(graph, this.history)
+			.withChannels(1)
+			.simulate();
+		assertEquals(300, report.makespan());
+		assertEquals(Arrays.asList(h1 + ": a", h1 + ": b"), report.criticalPath());
+		assertEquals(1.0, report.utilization().get(h1.toString()), 1e-9);
+		assertEquals(50 / 300.0, report.utilization().get(h2.toString()), 1e-9);
+	}
+
+	@Test
+	public void channelsLimitTheTasksPerHost() {
+		Host h = host("h");
+		DescriptorGraph graph = new DescriptorGraph();
+		graph.addDescriptors(command("a", 100, h), command("b", 100, h),
+				command("c", 100, h));
+		assertEquals(300, new DeploymentSimulator(graph, this.history)
+			.withChannels(1).simulate().makespan());
+		assertEquals(200, new DeploymentSimulator(graph, this.history)
+			.withChannels(2).simulate().makespan());
+		assertEquals(100, new DeploymentSimulator(graph, this.history)
+			.withChannels(3).simulate().makespan());
+	}
+
+	@Test
+	public void criticalPathFirstStartsTheLongestChain() {
+		Host h1 = host("h1"), h2 = host("h2"), h3 = host("h3");
+		CommandDescriptor y = command("y", 100, h1);
+		CommandDescriptor z = command("z", 100, h1, y);
+		DescriptorGraph graph = new DescriptorGraph();
+		graph.addDescriptors(y, z, command("x1", 100, h2),
+				command("x2", 100, h3));
+		long criticalPath = new DeploymentSimulator(graph, this.history)
+			.withPolicy(Policy.CRITICAL_PATH)
+			.withWorkers(2)
+			.simulate()
+			.makespan();
+		long fifo = new DeploymentSimulator(graph, this.history)
+			.withPolicy(Policy.FIFO)
+			.withWorkers(2)
+			.simulate()
+			.makespan();
+		assertEquals(200, criticalPath);
+		assertTrue(fifo >= criticalPath);
+	}
+
+	/**
+	 * Compares both policies on random graphs of 60 commands over 8 hosts,
+	 * where one command in five takes up to 20 seconds and the rest up to 2
+	 * seconds.
+	 */
+	@Test
+	public void criticalPathFirstShortensRandomDeployments() {
+		Random random = new Random(7);
+		Host[] hosts = new Host[8];
+		for (int i = 0; i < hosts.length; i++)
+			hosts[i] = host("r" + i);
+		long fifo = 0, criticalPath = 0;
+		for (int g = 0; g < 100; g++) {
+			List<CommandDescriptor> commands = new ArrayList<CommandDescriptor>();
+			for (int i = 0; i < 60; i++) {
+				long duration = 200 + (long) (random.nextDouble() < 0.2
+						? 20000 * random.nextDouble() : 2000 * random.nextDouble());
+				CommandDescriptor command = command("c" + i, duration,
+						hosts[random.nextInt(hosts.length)]);
+				for (int j = 0; j < i; j++) {
+					if (random.nextDouble() < 2.0 / i)
+						command.dependsOn(commands.get(j));
+				}
+				commands.add(command);
+			}
+			DescriptorGraph graph = new DescriptorGraph();
+			graph.addDescriptors(commands.toArray(new CommandDescriptor[0]));
+			fifo += new DeploymentSimulator(graph, this.history)
+				.withPolicy(Policy.FIFO)
+				.withWorkers(4)
+				.withChannels(1)
+				.simulate()
+				.makespan();
+			criticalPath += new DeploymentSimulator(graph, this.history)
+				.withPolicy(Policy.CRITICAL_PATH)
+				.withWorkers(4)
+				.withChannels(1)
+				.simulate()
+				.makespan();
+		}
+		assertTrue(criticalPath < fifo);
+	}
+
+	@Test
+	public void durationsAreDrawnFromTheirDistributions() {
+		Host h = host("h");
+		CommandDescriptor a = command("a", 0, h);
+		DescriptorGraph graph = new DescriptorGraph();
+		graph.addDescriptors(a);
+		Report single = new DeploymentSimulator(graph, this.history)
+			.withDuration(a, 1000, 300)
+			.simulate();
+		assertEquals(1000, single.makespan());
+		Report sampled = new DeploymentSimulator(graph, this.history)
+			.withDuration(a, 1000, 300)
+			.withRuns(2000, 42)
+			.simulate();
+		assertEquals(1000, sampled.makespan(), 50);
+		assertTrue(sampled.maxMakespan() > 1300);
+		Report repeated = new DeploymentSimulator(graph, this.history)
+			.withDuration(a, 1000, 300)
+			.withRuns(2000, 42)
+			.simulate();
+		assertEquals(sampled.makespan(), repeated.makespan());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void atLeastOneRunIsRequired() {
+		new DeploymentSimulator(new DescriptorGraph(), this.history).withRuns(0, 0);
+	}
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class ConsoleWriterTest {
+
+	/**
+	 * Counts the printed lines, discarding them
+	 */
+	private static class LineCounter extends OutputStream {
+		private volatile long lines;
+
+		@Override
+		public void write(int b) {
+			if (b == '\n')
+				this.lines++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				if (b[i] == '\n')
+					this.lines++;
+			}
+		}
+	}
+
+	/**
+	 * Publishes messages from one thread
+	 */
+	private interface Producer {
+		void produce(int messages);
+	}
+
+	private static final int THREADS = 8;
+
+	private static final int MESSAGES = 50000;
+
+	/**
+	 * The messages published by each thread before measuring
+	 */
+	private static final int WARM_UP = 20000;
+
+	private static final String MESSAGE = "   INFO [host] Command executed: (frascati run) 'composite'";
+
+	private PrintStream stdout;
+
+	@Before
+	public void redirect() {
+		this.stdout = System.out;
+	}
+
+	@After
+	public void restore() {
+		System.setOut(this.stdout);
+	}
+
+	@Test
+	public void printsEveryMessageUnderContention() throws Exception {
+		LineCounter counter = new LineCounter();
+		System.setOut(new PrintStream(counter));
+		final ConsoleWriter writer = new ConsoleWriter(8192);
+		writer.start();
+		long time = measure(new Producer() {
+			@Override public void produce(int messages) {
+				for (int i = 0; i < messages; i++)
+					writer.publish(MESSAGE, false, true, System.currentTimeMillis());
+			}
+		});
+		assertTrue(writer.flush(60000));
+		assertEquals(THREADS * (WARM_UP + MESSAGES), counter.lines);
+		report("asynchronous", time);
+	}
+
+	/**
+	 * The synchronous mode of {@link Log}, for comparison
+	 */
+	@Test
+	public void printsEveryMessageSynchronously() throws Exception {
+		LineCounter counter = new LineCounter();
+		System.setOut(new PrintStream(counter));
+		final Object lock = new Object();
+		long time = measure(new Producer() {
+			@Override public void produce(int messages) {
+				for (int i = 0; i < messages; i++) {
+					StringBuilder sb = new StringBuilder();
+					Log.format(sb, MESSAGE, true, System.currentTimeMillis());
+					synchronized (lock) {
+						System.out.println(sb);
+					}
+				}
+			}
+		});
+		assertEquals(THREADS * (WARM_UP + MESSAGES), counter.lines);
+		report("synchronous", time);
+	}
+
+	@Test
+	public void survivesMessagesThatCannotBeFormatted() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output, true));
+		ConsoleWriter writer = new ConsoleWriter(4);
+		writer.start();
+		writer.publish(null, false, true, 0);
+		writer.publish("after", false, false, 0);
+		assertTrue(writer.flush(5000));
+		assertTrue(writer.isAlive());
+		assertTrue(output.toString().contains("after"));
+	}
+
+	@Test
+	public void printsPlainMessagesAsIs() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(output, true));
+		ConsoleWriter writer = new ConsoleWriter(4);
+		writer.start();
+		writer.publish("(not) 'colored'", true, false, 0);
+		assertTrue(writer.flush(5000));
+		assertEquals("(not) 'colored'" + System.lineSeparator(), output.toString());
+	}
+
+	@Test
+	public void flushGivesUpOnAStoppedWriter() {
+		ConsoleWriter writer = new ConsoleWriter(4);
+		// Never started: the messages are never printed by the writer
+		writer.publish("message", false, false, 0);
+		assertTrue(!writer.flush(100));
+	}
+
+	/**
+	 * Publishes {@link #WARM_UP} and then {@link #MESSAGES} messages from
+	 * each of {@link #THREADS} threads at the same time
+	 * 
+	 * @return the time taken to publish the latter (in nanoseconds)
+	 */
+	private static long measure(final Producer producer)
+			throws InterruptedException {
+		contend(producer, WARM_UP);
+		return contend(producer, MESSAGES);
+	}
+
+	private static long contend(final Producer producer, final int messages)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread() {
+				@Override public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					producer.produce(messages);
+				}
+			};
+			threads[i].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		return System.nanoTime() - begin;
+	}
+
+	private static void report(final String mode, final long nanos) {
+		long messages = (long) THREADS * MESSAGES;
+		System.err.println(String.format("%s logging: %d threads, %d messages/s",
+				mode, THREADS, messages * 1000000000L / Math.max(1, nanos)));
+	}
+
+}
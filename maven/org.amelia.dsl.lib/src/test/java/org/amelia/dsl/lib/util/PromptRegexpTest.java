@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2015 Universidad Icesi
+ * 
+ * This file is part of the Amelia project.
+ * 
+ * The Amelia project is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * The Amelia project is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with the Amelia project. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.amelia.dsl.lib.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link ShellUtils#ameliaPromptRegexp()} with the expression used
+ * before the prompt had a token, which matched every part of the prompt and
+ * nested a quantifier in the directory.
+ * 
+ * @author Miguel Jiménez - Initial contribution and API
+ */
+public class PromptRegexpTest {
+
+	private static final String OLD_REGEXP = "\\[Amelia "
+			+ "(\\d+){4}-(\\d+){2}-(\\d+){2} "
+			+ "(\\d+){2}:(\\d+){2}:(\\d+){2} "
+			+ "([a-z_][a-z0-9_]{0,30})@([a-zA-Z0-9-\\.]{0,24}):"
+			+ "((\\/)?([^\\/ ]+(\\/)?)+|\\/)\\]\\$ ";
+
+	private static final Pattern OLD = Pattern.compile(OLD_REGEXP);
+
+	private static final Pattern NEW = Pattern.compile(ShellUtils.ameliaPromptRegexp());
+
+	/**
+	 * The token of the current prompt
+	 */
+	private static final String TOKEN = token();
+
+	private static final int ROUNDS = 20;
+
+	private static String token() {
+		Matcher matcher = Pattern.compile("\\[Amelia ([0-9a-f]+) ")
+			.matcher(ShellUtils.ameliaPromptFormat("bash"));
+		assertTrue(matcher.find());
+		return matcher.group(1);
+	}
+
+	private static String prompt(final boolean token, final String directory) {
+		return "[Amelia " + (token ? TOKEN + " " : "")
+				+ "2015-09-28 18:54:34 user@grid0:" + directory + "]$ ";
+	}
+
+	private static String deepDirectory(final int depth) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+			sb.append("/directory").append(i);
+		return sb.toString();
+	}
+
+	/**
+	 * @return about 1 MB of command output
+	 */
+	private static String output() {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 1024 * 1024)
+			sb.append("[INFO] Compiling 42 source files to /opt/app/target/classes\n");
+		return sb.toString();
+	}
+
+	@Test
+	public void findsThePromptAfterLargeOutputs() {
+		String directory = deepDirectory(50);
+		String oldBuffer = output() + prompt(false, directory);
+		String newBuffer = output() + prompt(true, directory);
+		assertTrue(OLD.matcher(oldBuffer).find());
+		assertTrue(NEW.matcher(newBuffer).find());
+		report("1 MB output, 50 directories", time(OLD, oldBuffer),
+				time(NEW, newBuffer));
+	}
+
+	/**
+	 * An output with lines resembling the prompt, but not ending like it
+	 * (e.g., a session log being printed). Each line is matched up to its
+	 * end by both expressions, and the old one also backtracks through its
+	 * nested directory quantifier.
+	 */
+	@Test
+	public void rejectsNearMissesQuickly() {
+		StringBuilder oldBuffer = new StringBuilder();
+		StringBuilder newBuffer = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			String line = prompt(false, deepDirectory(10)).replace("]$ ", " ls\n");
+			oldBuffer.append(line);
+			newBuffer.append(line.replace("[Amelia ", "[Amelia " + TOKEN + " "));
+		}
+		assertFalse(OLD.matcher(oldBuffer).find());
+		assertFalse(NEW.matcher(newBuffer).find());
+		report("1000 near misses, 10 directories", time(OLD, oldBuffer.toString()),
+				time(NEW, newBuffer.toString()));
+	}
+
+	@Test
+	public void ignoresPromptsOfOtherProcesses() {
+		assertFalse(NEW.matcher(prompt(false, "/home/user")).find());
+		assertFalse(NEW.matcher(prompt(true, "/home/user")
+			.replace(TOKEN, "000000000000")).find());
+		assertTrue(NEW.matcher(prompt(true, "/")).find());
+	}
+
+	/**
+	 * @return the mean time to search the buffer (in microseconds)
+	 */
+	private static long time(final Pattern pattern, final String buffer) {
+		pattern.matcher(buffer).find();
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			pattern.matcher(buffer).find();
+		return (System.nanoTime() - start) / ROUNDS / 1000;
+	}
+
+	private static void report(final String input, final long old,
+			final long current) {
+		System.err.println(String.format("%s: previous expression %d us, "
+				+ "current expression %d us", input, old, current));
+	}
+
+}
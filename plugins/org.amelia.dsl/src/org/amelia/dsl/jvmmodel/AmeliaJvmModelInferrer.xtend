@@ -531,9 +531,10 @@ class AmeliaJvmModelInferrer extends AbstractModelInferrer {
 							}
 
 						} else if (currentCommand > 0) {
+							// Commands of the same rule only wait for each other in the same host
 							trace(subsystem)
 								.newLine
-								.append('''«rule.name»[«currentCommand»].dependsOn(«rule.javaName(subsystem)»[«(currentCommand - 1)»]);''')
+								.append('''«rule.name»[«currentCommand»].dependsOnSameHost(«rule.javaName(subsystem)»[«(currentCommand - 1)»]);''')
 						}
 						currentCommand++
 					}